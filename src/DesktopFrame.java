@@ -1,5 +1,22 @@
 // Fig. 22.11: DesktopFrame.java
 // Demonstrating JDesktopPane.
+import arrangement.Arrangement;
+import arrangement.ArrangementCompiler;
+import arrangement.Section;
+import arrangement.SongCursor;
+import arrangement.TempoMap;
+import arrangement.Timeline;
+import pattern.DrumKit;
+import pattern.EventStream;
+import pattern.ObjectReader;
+import pattern.ObjectWriter;
+import pattern.PatternModel;
+import pattern.PatternSnapshot;
+import playback.RenderCache;
+import playback.StemRenderer;
+import similarity.PatternIndex;
+import smf.MultiTrackWriter;
+import smf.SmfWriter;
 import splitterdialog.SplitterDialog;
 
 import javax.sound.midi.*;
@@ -13,11 +30,15 @@ import java.awt.event.WindowEvent;
 import java.beans.PropertyVetoException;
 import java.io.File;
 import java.io.IOException;
+import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
 
 public class DesktopFrame extends JFrame implements SequenceProvider
 {
     private final static String title = "Drum Track Creator";
+    private final static long CACHE_SIZE = 512L << 20;  // bytes of rendered sections kept on disk
     private final JDesktopPane theDesktop;
     private final ArrayList<Drumbox> allBoxes = new ArrayList<>();
     private final JMenu docMenu;
@@ -25,12 +46,18 @@ public class DesktopFrame extends JFrame implements SequenceProvider
             "dproj");
     private final FileNameExtensionFilter midiFileFilter = new FileNameExtensionFilter("Midi Files",
             "mid");
+    private final FileNameExtensionFilter wavFileFilter = new FileNameExtensionFilter("Wave Files",
+            "wav");
     private JTextField patternList;
     private Drumbox currentActiveBox;
     private String currentProjectName = null;
     private JCheckBox notesOnly;
     private JSlider speedAdjust;
+    private JCheckBox multiTrack;
     private String currentProjectPath = null;
+    private PatternIndex patternIndex;  // last similarity index
+    private String patternIndexDir;     // directory of that index
+    private RenderCache renderCache;    // rendered sections, made on first bounce
 
     // set up SplitterDialog
     private DesktopFrame ()
@@ -71,6 +98,9 @@ public class DesktopFrame extends JFrame implements SequenceProvider
         JMenuItem splitter = new JMenuItem("Splitter");
         toolsMenu.add (splitter);
         splitter.addActionListener(e -> SplitterDialog.start(this)); // Run splitter
+        JMenuItem similar = new JMenuItem("Find similar ...");
+        toolsMenu.add (similar);
+        similar.addActionListener(e -> findSimilar());
 
         docMenu = new JMenu("Patterns"); // create Add menu
 
@@ -179,22 +209,22 @@ public class DesktopFrame extends JFrame implements SequenceProvider
         patternList = new JTextField();
         patternList.setToolTipText("<html>Enter seuence of Drumbox numbers separated by comma"+
         "<br>or separated by + if they shall play simultaneously."+
+        "<br>(...) groups, x8 repeats, [name: ...] defines a section that can be played by name,"+
+        "<br>e.g. intro, (1+3)x8, [verse: 2x4], verse x2"+
         "<html>");
         patternList.setBackground(Color.white);
         patternList.setPreferredSize(new Dimension(500, 20));
         controlPanel.add(patternList);
 
         speedAdjust = new JSlider();
-        speedAdjust.setMinimum(0);
-        speedAdjust.setMaximum(19);
-        speedAdjust.setValue(9);
-        speedAdjust.setToolTipText("Speed Adjust: " + getMasterSpeedDivider());
-        speedAdjust.setMinorTickSpacing(1);
-        speedAdjust.setMajorTickSpacing(2);
+        speedAdjust.setMinimum(10);
+        speedAdjust.setMaximum(500);
+        speedAdjust.setValue(100);
+        speedAdjust.setToolTipText("Master Tempo %: " + speedAdjust.getValue());
+        speedAdjust.setMinorTickSpacing(5);
+        speedAdjust.setMajorTickSpacing(50);
         speedAdjust.setPaintTicks(true);
         speedAdjust.setSnapToTicks(true);
-        speedAdjust.addChangeListener(e ->
-                Helper.showToolTip(speedAdjust, "Speed", this::getMasterSpeedDivider));
         controlPanel.add(speedAdjust);
 
         JPanel p2 = new JPanel();
@@ -204,16 +234,30 @@ public class DesktopFrame extends JFrame implements SequenceProvider
         notesOnly.setToolTipText("Select this if MIDI file has only note events");
         p2.add(notesOnly);
 
+        multiTrack = new JCheckBox();
+        multiTrack.setToolTipText("Select this to write one track per drum instrument, or one WAV file per instrument on bounce");
+        p2.add(multiTrack);
+
         JButton butt = new JButton("Create MIDI");
         butt.setToolTipText("Create and save MIDI file.");
         p2.add(butt);
         butt.addActionListener(e -> saveMidi(getArrangement()));
 
+        JButton bounce = new JButton("Bounce WAV");
+        bounce.setToolTipText("Render the arrangement into a WAV file, faster than real time.");
+        p2.add(bounce);
+        bounce.addActionListener(e -> bounceWav(getArrangement()));
+
         controlPanel.add(p2);
 
         PlayButton butt2 = new PlayButton(this);
         butt2.setToolTipText("Play/Stop whole Arrangement");
         controlPanel.add(butt2);
+        speedAdjust.addChangeListener(e ->
+        {
+            Helper.showToolTip(speedAdjust, "Master Tempo %");
+            butt2.tempoChanged();
+        });
         return controlPanel;
     }
 
@@ -283,6 +327,80 @@ public class DesktopFrame extends JFrame implements SequenceProvider
         box.loadWithDialog();
     }
 
+    /**
+     * Menu click: find patterns in a directory that are like the selected Drumbox
+     * The directory is indexed in the background, the index is kept for the next search
+     */
+    private void findSimilar ()
+    {
+        if (currentActiveBox == null)
+        {
+            JOptionPane.showMessageDialog(this, "Select a Drumbox first");
+            return;
+        }
+        final JFileChooser fc = new JFileChooser(patternIndexDir);
+        fc.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+        if (fc.showOpenDialog(this) != JFileChooser.APPROVE_OPTION)
+        {
+            return;
+        }
+        String dir = fc.getSelectedFile().getAbsolutePath();
+        PatternSnapshot query = currentActiveBox.getModel().snapshot();
+        PatternIndex cached = dir.equals(patternIndexDir) ? patternIndex : null;
+        new Thread(() ->
+        {
+            try
+            {
+                PatternIndex idx = cached != null ? cached : PatternIndex.scan(dir);
+                List<PatternIndex.Match> result = idx.nearest(query, 20);
+                SwingUtilities.invokeLater(() ->
+                {
+                    patternIndex = idx;
+                    patternIndexDir = dir;
+                    showMatches(result);
+                });
+            }
+            catch (Exception e)
+            {
+                System.out.println(e);
+                SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(this, "Search fail: " + e,
+                        "Drum Tool", JOptionPane.ERROR_MESSAGE));
+            }
+        }).start();
+    }
+
+    /**
+     * Show search result, the chosen pattern is loaded into a new Drumbox
+     *
+     * @param result the patterns, nearest first
+     */
+    private void showMatches (List<PatternIndex.Match> result)
+    {
+        JList<PatternIndex.Match> list = new JList<>(result.toArray(new PatternIndex.Match[0]));
+        list.setSelectedIndex(0);
+        if (JOptionPane.showConfirmDialog(this, new JScrollPane(list), "Similar patterns (distance, file)",
+                JOptionPane.OK_CANCEL_OPTION) != JOptionPane.OK_OPTION || list.getSelectedValue() == null)
+        {
+            return;
+        }
+        PatternModel m = new PatternModel();
+        try
+        {
+            m.read(list.getSelectedValue().getName());   // before the box is made, the file may be broken
+        }
+        catch (Exception e)
+        {
+            System.out.println(e);
+            JOptionPane.showMessageDialog(this, "Load fail: " + e, "Drum Tool", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        Drumbox box = newDrumbox();
+        if (box != null)
+        {
+            box.getModel().copyFrom(m);
+        }
+    }
+
     /**
      * Menu click: clone
      */
@@ -387,17 +505,17 @@ public class DesktopFrame extends JFrame implements SequenceProvider
         w.close();
     }
 
-    private float getMasterSpeedDivider ()
+    /**
+     * Master tempo, pattern tempos are multiplied by that
+     *
+     * @return tempo factor, 1 is the tempo of the patterns
+     */
+    private float getMasterTempo ()
     {
-        float[] vals = new float[]
-                {
-                        0.1f, 0.2f, 0.3f, 0.4f, 0.5f, 0.6f, 0.7f, 0.8f, 0.9f, 1.0f,
-                        1.2f, 1.3f, 1.5f, 1.8f, 2.0f, 2.5f, 3.0f, 3.5f, 4.0f, 5.0f
-                };
-        return vals[speedAdjust.getValue()];
+        return speedAdjust.getValue() / 100f;
     }
 
-    private void saveMidi (ArrayList<Integer> ar)
+    private void saveMidi (Arrangement ar)
     {
         final JFileChooser fc = new JFileChooser();
         fc.setFileFilter(midiFileFilter);
@@ -411,8 +529,7 @@ public class DesktopFrame extends JFrame implements SequenceProvider
                 f = fc.getSelectedFile();
                 try
                 {
-                    Sequence seq = createMidi(ar);
-                    if (seq == null)
+                    if (ar == null || !writeMidi(ar, f))
                     {
                         JOptionPane.showMessageDialog(this,
                                 "Nothing to do", "Drum Tool",
@@ -420,7 +537,6 @@ public class DesktopFrame extends JFrame implements SequenceProvider
                     }
                     else
                     {
-                        MidiSystem.write(seq, 1, f);
                         JOptionPane.showMessageDialog(this,
                                 "Saved to: " + f.getAbsolutePath(),
                                 "Drum Tool", JOptionPane.INFORMATION_MESSAGE);
@@ -444,98 +560,248 @@ public class DesktopFrame extends JFrame implements SequenceProvider
         }
     }
 
-    private ArrayList<Integer> getArrangement ()
+    /**
+     * Render the song into a WAV file, or into one WAV file per instrument
+     * if multi track is selected
+     * The arrangement is compiled at once, the audio is rendered in the background,
+     * a song is made of cached sections, only sections that changed are rendered
+     *
+     * @param ar the arrangement or null
+     */
+    private void bounceWav (Arrangement ar)
     {
-        String str = patternList.getText().replaceAll("\\s+", "");
-        String[] nums = str.split(",");
-        ArrayList<Integer> ar = new ArrayList<>();
-        for (String s : nums)
+        boolean stems = multiTrack.isSelected();
+        Supplier<EventStream> song = ar == null || !stems ? null : createSong(ar, getMasterTempo());
+        Section[] sections = ar == null || stems ? null : createSections(ar, getMasterTempo());
+        if (song == null && sections == null)
         {
-            String[] add = s.split("\\+");
-            if (add.length > 1)
+            return;
+        }
+        final JFileChooser fc = new JFileChooser();
+        fc.setFileFilter(wavFileFilter);
+        fc.setSelectedFile(new File("bounce_" + System.currentTimeMillis() + ".wav"));
+        if (fc.showSaveDialog(this) != JFileChooser.APPROVE_OPTION)
+        {
+            return;
+        }
+        File f = fc.getSelectedFile();
+        new Thread(() ->
+        {
+            try
             {
-                for (int n = 0; n < add.length; n++)
+                String msg;
+                if (stems)
                 {
-                    int i = Integer.parseInt(add[n]);
-                    if (n < (add.length - 1))
-                    {
-                        i = i + 1000;
-                    }
-                    ar.add(i);
+                    StemRenderer sr = new StemRenderer(song);
+                    List<File> files = sr.render(f);
+                    msg = String.format("%d stems saved to: %s%n%.1f s audio in %.1f s",
+                            files.size(), f.getAbsoluteFile().getParent(), sr.getAudioMicros() / 1e6,
+                            sr.getRenderNanos() / 1e9);
                 }
+                else
+                {
+                    RenderCache.Result r = getRenderCache().render(sections, f);
+                    msg = String.format("Saved to: %s%n%s (%.0fx real time)", f.getAbsolutePath(), r,
+                            r.getAudioMicros() * 1000.0 / r.getNanos());
+                }
+                SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(this, msg,
+                        "Drum Tool", JOptionPane.INFORMATION_MESSAGE));
             }
-            else
+            catch (Exception e)
             {
-                ar.add(Integer.parseInt(s));
+                System.out.println(e);
+                SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(this, "Bounce fail: " + e,
+                        "Drum Tool", JOptionPane.ERROR_MESSAGE));
             }
-        }
-        return ar;
+        }).start();
     }
 
     /**
-     * Create a midi file from all drum boxes and controlled
-     * by an array of numbers
+     * Parse the arrangement text field
      *
-     * @param programList sequence of patterns
+     * @return the arrangement or null if the text is wrong
      */
-    private Sequence createMidi (ArrayList<Integer> programList)
+    private Arrangement getArrangement ()
     {
-        if (programList.isEmpty())
+        try
+        {
+            return Arrangement.parse(patternList.getText());
+        }
+        catch (ParseException e)
         {
+            System.out.println(e);
+            patternList.setCaretPosition(Math.min(e.getErrorOffset(), patternList.getText().length()));
+            patternList.requestFocusInWindow();
+            JOptionPane.showMessageDialog(this, e.getMessage(), "Drum Tool", JOptionPane.ERROR_MESSAGE);
             return null;
         }
-        float speedMult = getMasterSpeedDivider();
-        int lastprogram = -1;
-        try
+    }
+
+    /**
+     * Write the song as MIDI file of type 1, with one track or with one track per instrument
+     * The song is rendered on all cores and written without building a Sequence
+     *
+     * @param arrangement the arrangement
+     * @param f           the file
+     * @return false if the song can't be built
+     * @throws IOException if writing fails
+     */
+    private boolean writeMidi (Arrangement arrangement, File f) throws IOException
+    {
+        SongCursor c = renderSong(arrangement, getMasterTempo());
+        if (c == null)
+        {
+            return false;
+        }
+        if (multiTrack.isSelected())
         {
-            Sequence newSequence = new Sequence(0.0f, 960);
-            Track newTrack = newSequence.createTrack();
-            long offset = 1;
-            for (Integer i : programList)
+            writeTracks(c, f);
+            return true;
+        }
+        SmfWriter.write(c, TempoMap.RESOLUTION, f);
+        return true;
+    }
+
+    /**
+     * Write a type 1 MIDI file in one pass: notes go to the track of their instrument,
+     * tempo and program changes to the conductor track
+     *
+     * @param c the song
+     * @param f the file
+     * @throws IOException if writing fails
+     */
+    private void writeTracks (SongCursor c, File f) throws IOException
+    {
+        boolean[] used = new boolean[128];
+        try (MultiTrackWriter w = new MultiTrackWriter(f, TempoMap.RESOLUTION))
+        {
+            w.setTrackName(0, title);
+            while (c.next())
             {
-                boolean add = false;
-                if (i >= 1000)
+                MidiMessage msg = c.getMessage();
+                int track = 0;
+                if (msg instanceof ShortMessage)
                 {
-                    i = i - 1000;
-                    add = true;
-                }
-                Drumbox currentBox = allBoxes.get(i);
-                Sequence boxSeq = currentBox.createMIDI();
-                Track tr = boxSeq.getTracks()[0];
-                for (int s = 0; s < tr.size(); s++)
-                {
-                    MidiEvent ev = tr.get(s);
-                    MidiMessage midiMessage = ev.getMessage();
-                    if (midiMessage instanceof ShortMessage)
+                    ShortMessage sm = (ShortMessage) msg;
+                    if (sm.getCommand() == ShortMessage.NOTE_ON || sm.getCommand() == ShortMessage.NOTE_OFF)
                     {
-                        ShortMessage shortMessage = (ShortMessage) midiMessage;
-                        if (shortMessage.getCommand() == ShortMessage.PROGRAM_CHANGE)
+                        int note = sm.getData1();
+                        track = note + 1;
+                        if (!used[note])
                         {
-                            if (notesOnly.isSelected())  // skip prg change
-                            {
-                                continue;
-                            }
-                            int prg = shortMessage.getData1(); // skip multiple prg change to same prg
-                            if (prg == lastprogram)
-                            {
-                                continue;
-                            }
-                            lastprogram = prg;
+                            used[note] = true;
+                            w.setTrackName(track, DrumKit.getInstrumentName(note));
                         }
                     }
-                    if (midiMessage.getStatus() == 255) // end of track
-                    {
-                        continue;
-                    }
-                    ev.setTick((int) ((ev.getTick() + offset) / speedMult));
-                    newTrack.add(ev);
                 }
-                if (!add)
+                w.write(track, c.getTick(), msg);
+            }
+        }
+    }
+
+    /**
+     * Compile the arrangement, but not the song
+     *
+     * @param arrangement the arrangement
+     * @param masterTempo all tempos are multiplied by that
+     * @return cursor over all events of the song or null on failure
+     */
+    private SongCursor createCursor (Arrangement arrangement, float masterTempo)
+    {
+        try
+        {
+            ArrangementCompiler ac = createCompiler();
+            return ac.cursor(arrangement.toTimeline(ac::getLength), masterTempo, notesOnly.isSelected());
+        }
+        catch (Exception e)
+        {
+            System.out.println(e);
+        }
+        return null;
+    }
+
+    /**
+     * Render the song for export
+     *
+     * @param arrangement the arrangement
+     * @param masterTempo all tempos are multiplied by that
+     * @return cursor over all events of the song or null on failure
+     */
+    private SongCursor renderSong (Arrangement arrangement, float masterTempo)
+    {
+        try
+        {
+            ArrangementCompiler ac = createCompiler();
+            return ac.render(arrangement.toTimeline(ac::getLength), masterTempo, notesOnly.isSelected());
+        }
+        catch (Exception e)
+        {
+            System.out.println(e);
+        }
+        return null;
+    }
+
+    /**
+     * Get the cache of rendered sections, it's in the home directory
+     *
+     * @return the cache
+     * @throws IOException if the cache directory can't be made
+     */
+    private synchronized RenderCache getRenderCache () throws IOException
+    {
+        if (renderCache == null)
+        {
+            renderCache = new RenderCache(new File(System.getProperty("user.home"), ".drumtool/cache"), CACHE_SIZE);
+        }
+        return renderCache;
+    }
+
+    /**
+     * Cut the song into sections that are rendered on their own
+     *
+     * @param arrangement the arrangement
+     * @param masterTempo all tempos are multiplied by that
+     * @return the sections or null on failure
+     */
+    private Section[] createSections (Arrangement arrangement, float masterTempo)
+    {
+        try
+        {
+            ArrangementCompiler ac = createCompiler();
+            return ac.sections(arrangement.toTimeline(ac::getLength), masterTempo, notesOnly.isSelected());
+        }
+        catch (Exception e)
+        {
+            System.out.println(e);
+        }
+        return null;
+    }
+
+    /**
+     * Compile the arrangement for streams that are created later, maybe on other threads
+     *
+     * @param arrangement the arrangement
+     * @param masterTempo all tempos are multiplied by that
+     * @return gives a new cursor over the song on every call, or null on failure
+     */
+    private Supplier<EventStream> createSong (Arrangement arrangement, float masterTempo)
+    {
+        try
+        {
+            ArrangementCompiler ac = createCompiler();
+            Timeline timeline = arrangement.toTimeline(ac::getLength);
+            boolean notes = notesOnly.isSelected();
+            return () ->
+            {
+                try
                 {
-                    offset += (tr.ticks() + currentBox.getSpeedValue());
+                    return ac.cursor(timeline, masterTempo, notes);
                 }
-            }
-            return newSequence;
+                catch (InvalidMidiDataException e)
+                {
+                    throw new IllegalStateException(e);
+                }
+            };
         }
         catch (Exception e)
         {
@@ -544,6 +810,16 @@ public class DesktopFrame extends JFrame implements SequenceProvider
         return null;
     }
 
+    private ArrangementCompiler createCompiler ()
+    {
+        PatternSnapshot[] patterns = new PatternSnapshot[allBoxes.size()]; // edits from now on don't matter
+        for (int s = 0; s < patterns.length; s++)
+        {
+            patterns[s] = allBoxes.get(s).getModel().snapshot();
+        }
+        return new ArrangementCompiler(patterns);
+    }
+
     public static void main (String args[]) throws Exception
     {
         UIManager.setLookAndFeel("com.sun.java.swing.plaf.motif.MotifLookAndFeel");
@@ -558,14 +834,23 @@ public class DesktopFrame extends JFrame implements SequenceProvider
     } // end main
 
     /**
-     * Interface für Play Button to create MIDI Sequence
+     * Interface for Play Button to stream the song
+     * Only the arrangement is compiled, events are merged while playing
+     * The master tempo is applied by the player, so it can change while playing
      *
-     * @return Sequence that can be played or saved
+     * @return the events or null if the arrangement is wrong
      */
     @Override
-    public Sequence createMIDI ()
+    public EventStream createStream ()
+    {
+        Arrangement arrangement = getArrangement();
+        return arrangement == null ? null : createCursor(arrangement, 1);
+    }
+
+    @Override
+    public double getTempoFactor ()
     {
-        return createMidi(getArrangement());
+        return getMasterTempo();
     }
 
 } // end class DesktopFrame
@@ -0,0 +1,211 @@
+import pattern.DrumKit;
+import pattern.PatternModel;
+import pattern.StepGrid;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+
+/**
+ * All drum pads of a Drumbox in one component
+ * Only visible pads are painted, a model change repaints only the pads that changed
+ */
+class DrumGrid extends JComponent implements Scrollable
+{
+    static final int CELL = 20;     // Size of one pad in pixels
+    private final PatternModel model;
+    private long[] shown = new long[0]; // Pads as they were painted last
+    private int shownLines;
+    private int shownSteps;
+    private int shownWords;
+
+    /**
+     * Constructor
+     * @param m The pattern
+     */
+    DrumGrid (PatternModel m)
+    {
+        model = m;
+        setOpaque(true);
+        ToolTipManager.sharedInstance().registerComponent(this);
+        addMouseListener(new MouseAdapter()
+        {
+            @Override
+            public void mousePressed (MouseEvent e)
+            {
+                int line = e.getY() / CELL;
+                int step = e.getX() / CELL;
+                if (line < model.getLines() && step < model.getSteps())
+                {
+                    toggle(line, step);
+                }
+            }
+        });
+        modelChanged();
+    }
+
+    /**
+     * Switch a pad on or off
+     * The instrument is played when the pad goes on
+     *
+     * @param line Row number
+     * @param step Column number
+     */
+    void toggle (int line, int step)
+    {
+        if (model.isHit(line, step))
+        {
+            model.clearHit(line, step);
+        }
+        else
+        {
+            RealtimePlayer.get().play(model.getInstrument(line), model.getVolume(), model.getNoteLength());
+            model.setHit(line, step, model.getVolume());
+        }
+    }
+
+    /**
+     * Must be called after the model has changed
+     * Repaints all pads that differ from what was painted before
+     */
+    void modelChanged ()
+    {
+        StepGrid g = model.getGrid();
+        int lines = model.getLines();
+        int steps = model.getSteps();
+        int words = g.getWordsPerRow();
+        if (lines != shownLines || steps != shownSteps || words != shownWords)
+        {
+            shownLines = lines;
+            shownSteps = steps;
+            shownWords = words;
+            shown = new long[lines * words];
+            copyPads(g);
+            revalidate();
+            repaint();
+            return;
+        }
+        for (int row = 0; row < lines; row++)
+        {
+            for (int w = 0; w < words; w++)
+            {
+                long diff = shown[row * words + w] ^ g.getWord(row, w);
+                while (diff != 0)
+                {
+                    int step = w << 6 | Long.numberOfTrailingZeros(diff);
+                    diff &= diff - 1;
+                    if (step < steps)
+                    {
+                        repaint(step * CELL, row * CELL, CELL, CELL);
+                    }
+                }
+            }
+        }
+        copyPads(g);
+    }
+
+    private void copyPads (StepGrid g)
+    {
+        for (int row = 0; row < shownLines; row++)
+        {
+            for (int w = 0; w < shownWords; w++)
+            {
+                shown[row * shownWords + w] = g.getWord(row, w);
+            }
+        }
+    }
+
+    @Override
+    protected void paintComponent (Graphics g)
+    {
+        Rectangle clip = g.getClipBounds();
+        if (clip == null)
+        {
+            clip = new Rectangle(0, 0, getWidth(), getHeight());
+        }
+        g.setColor(Color.BLACK);
+        g.fillRect(clip.x, clip.y, clip.width, clip.height);
+        Color on = UIManager.getColor("ToggleButton.select");
+        Color off = UIManager.getColor("ToggleButton.background");
+        on = on == null ? Color.RED : on;
+        off = off == null ? Color.LIGHT_GRAY : off;
+        int r0 = Math.max(0, clip.y / CELL);
+        int r1 = Math.min(model.getLines(), (clip.y + clip.height + CELL - 1) / CELL);
+        int c0 = Math.max(0, clip.x / CELL);
+        int c1 = Math.min(model.getSteps(), (clip.x + clip.width + CELL - 1) / CELL);
+        for (int row = r0; row < r1; row++)
+        {
+            for (int step = c0; step < c1; step++)
+            {
+                int x = step * CELL;
+                int y = row * CELL;
+                g.setColor(model.isHit(row, step) ? on : off);
+                g.fillRect(x, y, CELL, CELL);
+                g.setColor(Color.GREEN);
+                g.drawRect(x, y, CELL - 1, CELL - 1);
+            }
+        }
+    }
+
+    @Override
+    public String getToolTipText (MouseEvent e)
+    {
+        int line = e.getY() / CELL;
+        int step = e.getX() / CELL;
+        if (line < model.getLines() && step < model.getSteps() && model.isHit(line, step))
+        {
+            return createTooltipText(model.getNote(line, step), model.getVelocity(line, step));
+        }
+        return null;
+    }
+
+    static String createTooltipText (int instr, int volume)
+    {
+        return "<html>"+
+                DrumKit.instrumentNames[DrumKit.getInstrumentNameIndex(instr)]+
+                "<br>Volume: "+volume+
+                "</html>";
+    }
+
+    @Override
+    public Dimension getPreferredSize ()
+    {
+        return new Dimension(model.getSteps() * CELL, model.getLines() * CELL);
+    }
+
+    @Override
+    public Dimension getPreferredScrollableViewportSize ()
+    {
+        return new Dimension(Math.min(model.getSteps(), PatternModel.STEPS) * CELL,
+                Math.min(model.getLines(), 16) * CELL);
+    }
+
+    @Override
+    public int getScrollableUnitIncrement (Rectangle visibleRect, int orientation, int direction)
+    {
+        return CELL;
+    }
+
+    @Override
+    public int getScrollableBlockIncrement (Rectangle visibleRect, int orientation, int direction)
+    {
+        if (orientation == SwingConstants.HORIZONTAL)
+        {
+            return Math.max(CELL, visibleRect.width / CELL * CELL);
+        }
+        return Math.max(CELL, visibleRect.height / CELL * CELL);
+    }
+
+    @Override
+    public boolean getScrollableTracksViewportWidth ()
+    {
+        return false;
+    }
+
+    @Override
+    public boolean getScrollableTracksViewportHeight ()
+    {
+        return false;
+    }
+}
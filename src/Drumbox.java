@@ -1,32 +1,46 @@
-import sermidi.SerMidEvent;
-import sermidi.SerShortMessage;
+import generator.PatternGenerator;
+import generator.Template;
+import pattern.DrumKit;
+import pattern.EventStream;
+import pattern.ObjectReader;
+import pattern.ObjectWriter;
+import pattern.PatternModel;
+import pattern.PatternSnapshot;
 
-import javax.sound.midi.*;
 import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import javax.swing.filechooser.FileNameExtensionFilter;
 import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.InputEvent;
+import java.awt.event.KeyEvent;
 import java.io.File;
 import java.io.Serializable;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.ArrayList;
+import java.util.Random;
 
 public class Drumbox extends JPanel implements Serializable, SequenceProvider
 {
-    private static final int LINES = 10;
     private static int instanceNumber = 0;
     private final JSlider noteLengthSlider = new JSlider();
-    final JSlider volSlider = new JSlider();
+    private final JSlider volSlider = new JSlider();
    // private final Sequencer sequencer;
     private final JInternalFrame mdiClient;
     private final JSlider speedSlider = new JSlider();  // Speed for this pattern
+    private PlayButton playButton;
+    private int streamSpeed = 1;    // speed of the stream that is played
     private final JTextField loopCount = new JTextField();
-    private final DrumPadLine[] drumPanels = new DrumPadLine[LINES];
+    private final ArrayList<DrumPadLine> drumPanels = new ArrayList<>();
     private final FileNameExtensionFilter drumBoxFileFilter = new FileNameExtensionFilter("Drum Pattern",
             "drmp");
-    private HashMap<Long, SerMidEvent> eventMap = new HashMap<>();   // The event list
-    int drumSteps = 32; // Number of drumSteps
+    private final PatternModel model = new PatternModel();   // The pattern shown here
+    private final DrumGrid drumGrid = new DrumGrid(model);
+    private final JPanel lineHeads = new JPanel(new GridLayout(0, 1, 0, 0));
     private JComboBox<String> drumKits;
+    private boolean updating;   // controls are set from the model
+    private PatternGenerator generator = new PatternGenerator(System.nanoTime());
+    private final JTextField seedField = new JTextField();
 
     /**
      * Constructor: Build complete frame and show it
@@ -36,15 +50,16 @@ public class Drumbox extends JPanel implements Serializable, SequenceProvider
     public Drumbox (JInternalFrame frame)
     {
         mdiClient = frame;
-        GridLayout gl = new GridLayout(LINES + 1, 1, 0, 0);
-        this.setLayout(gl);
         //sequencer = MidiSystem.getSequencer();
-        for (int s = 0; s < LINES; s++)
-        {
-            drumPanels[s] = new DrumPadLine(s, this);
-            this.add(drumPanels[s]);
-        }
-        this.add(makeControlPanel());
+        this.setLayout(new BorderLayout());
+        adjustDrumLines(model.getLines());
+        JScrollPane scroll = new JScrollPane(drumGrid);
+        scroll.setRowHeaderView(lineHeads);
+        scroll.setBorder(BorderFactory.createEmptyBorder());
+        this.add(scroll, BorderLayout.CENTER);
+        this.add(makeControlPanel(), BorderLayout.SOUTH);
+        model.addListener(m -> updateFromModel());
+        bindUndoKeys();
         setVisible(true);
         instanceNumber++;
     }
@@ -60,6 +75,7 @@ public class Drumbox extends JPanel implements Serializable, SequenceProvider
     {
         this(frame);
         loadPattern(patternPath);
+        model.getJournal().clear();
     }
 
     /**
@@ -72,7 +88,34 @@ public class Drumbox extends JPanel implements Serializable, SequenceProvider
     public Drumbox (JInternalFrame frame, ObjectReader reader)
     {
         this(frame);
-        loadPattern(reader);
+        model.read(reader);
+        model.getJournal().clear();
+    }
+
+    /**
+     * Ctrl+Z undoes and Ctrl+Y redoes the last change
+     */
+    private void bindUndoKeys ()
+    {
+        InputMap im = getInputMap(JComponent.WHEN_ANCESTOR_OF_FOCUSED_COMPONENT);
+        im.put(KeyStroke.getKeyStroke(KeyEvent.VK_Z, InputEvent.CTRL_DOWN_MASK), "undo");
+        im.put(KeyStroke.getKeyStroke(KeyEvent.VK_Y, InputEvent.CTRL_DOWN_MASK), "redo");
+        getActionMap().put("undo", new AbstractAction()
+        {
+            @Override
+            public void actionPerformed (ActionEvent e)
+            {
+                model.undo();
+            }
+        });
+        getActionMap().put("redo", new AbstractAction()
+        {
+            @Override
+            public void actionPerformed (ActionEvent e)
+            {
+                model.redo();
+            }
+        });
     }
 
     /**
@@ -94,39 +137,44 @@ public class Drumbox extends JPanel implements Serializable, SequenceProvider
     {
         JPanel panel = new JPanel();
         panel.setLayout(new FlowLayout(FlowLayout.LEFT, 0, 0));
-        panel.setPreferredSize(new Dimension(200, 30));
 
         JButton bplus = new JButton("+");
         bplus.setMargin(new Insets(0, 5, 0, 5));
         bplus.setToolTipText("Increase Pattern");
         bplus.addActionListener(e ->
-        {
-            if (drumSteps < 32)
-            {
-                drumSteps++;
-                adjustDrumLineLength(drumSteps);
-            }
-        });
+                model.setSteps(model.getSteps() + 1));
         panel.add(bplus);
 
         JButton bminus = new JButton("-");
         bminus.setMargin(new Insets(0, 5, 0, 5));
         bminus.setToolTipText("Make Pattern smaller");
         bminus.addActionListener(e ->
-        {
-            if (drumSteps > 1)
-            {
-                drumSteps--;
-                adjustDrumLineLength(drumSteps);
-            }
-        });
+                model.setSteps(model.getSteps() - 1));
         panel.add(bminus);
 
+        JButton lplus = new JButton("L+");
+        lplus.setMargin(new Insets(0, 5, 0, 5));
+        lplus.setToolTipText("Add drum line");
+        lplus.addActionListener(e ->
+                model.setLines(model.getLines() + 1));
+        panel.add(lplus);
+
+        JButton lminus = new JButton("L-");
+        lminus.setMargin(new Insets(0, 5, 0, 5));
+        lminus.setToolTipText("Remove last drum line");
+        lminus.addActionListener(e ->
+                model.setLines(model.getLines() - 1));
+        panel.add(lminus);
+
         drumKits = new JComboBox<>(DrumKit.drumKitNames);
         drumKits.addActionListener(e ->
         {
-            int kit = DrumKit.readNumber((String) drumKits.getSelectedItem());
-            RealtimePlayer.get().setInstrument(kit);
+            if (updating)
+            {
+                return;
+            }
+            model.setDrumKit(drumKits.getSelectedIndex());
+            RealtimePlayer.get().setInstrument(model.getDrumKitProgram());
         });
         panel.add(drumKits);
 
@@ -137,8 +185,16 @@ public class Drumbox extends JPanel implements Serializable, SequenceProvider
         speedSlider.setPaintTicks(true);
         speedSlider.setSnapToTicks(true);
         speedSlider.setToolTipText("Track Speed:" + speedSlider.getValue());
+        speedSlider.setValue(model.getSpeed());
         speedSlider.addChangeListener(e ->
-                Helper.showToolTip(speedSlider, "Speed"));
+        {
+            if (updating)
+            {
+                return;
+            }
+            model.setSpeed(speedSlider.getValue());
+            Helper.showToolTip(speedSlider, "Speed");
+        });
 
         noteLengthSlider.setToolTipText("Event Length");
         loopCount.setPreferredSize(new Dimension(100, 20));
@@ -148,8 +204,16 @@ public class Drumbox extends JPanel implements Serializable, SequenceProvider
         noteLengthSlider.setMajorTickSpacing(100);
         noteLengthSlider.setPaintTicks(true);
         noteLengthSlider.setSnapToTicks(true);
+        noteLengthSlider.setValue(model.getNoteLength());
         noteLengthSlider.addChangeListener(e ->
-                Helper.showToolTip(noteLengthSlider, "Note Length"));
+        {
+            if (updating)
+            {
+                return;
+            }
+            model.setNoteLength(noteLengthSlider.getValue());
+            Helper.showToolTip(noteLengthSlider, "Note Length");
+        });
 
         volSlider.setToolTipText("Event Volume");
         volSlider.setMinimum(0);
@@ -158,13 +222,45 @@ public class Drumbox extends JPanel implements Serializable, SequenceProvider
         volSlider.setMajorTickSpacing(16);
         volSlider.setPaintTicks(true);
         volSlider.setSnapToTicks(true);
-        volSlider.setValue(127);
+        volSlider.setValue(model.getVolume());
         volSlider.addChangeListener(e ->
-                Helper.showToolTip(volSlider, "Volume"));
+        {
+            if (updating)
+            {
+                return;
+            }
+            model.setVolume(volSlider.getValue());
+            Helper.showToolTip(volSlider, "Volume");
+        });
 
         loopCount.setPreferredSize(new Dimension(20, 20));
         loopCount.setToolTipText("Loop Count");
-        loopCount.setText("1");
+        loopCount.setText(Integer.toString(model.getLoopCount()));
+        loopCount.getDocument().addDocumentListener(new DocumentListener()
+        {
+            @Override
+            public void insertUpdate (DocumentEvent e)
+            {
+                if (!updating)
+                {
+                    model.setLoopCount(PatternModel.parseLoopCount(loopCount.getText()));
+                }
+            }
+
+            @Override
+            public void removeUpdate (DocumentEvent e)
+            {
+                if (!updating)
+                {
+                    model.setLoopCount(PatternModel.parseLoopCount(loopCount.getText()));
+                }
+            }
+
+            @Override
+            public void changedUpdate (DocumentEvent e)
+            {
+            }
+        });
 
         JButton bsave = new JButton("Save");
         bsave.setMargin(new Insets(1, 1, 1, 1));
@@ -179,10 +275,9 @@ public class Drumbox extends JPanel implements Serializable, SequenceProvider
         bload.addActionListener(e ->
                 loadWithDialog());
 
-        JToggleButton b2 = new PlayButton(this);
-        b2.setToolTipText("Play/Stop Pattern");
-        panel.add(b2);
-        //b2.addActionListener(e -> playButtonClicked(b2));
+        playButton = new PlayButton(this);
+        playButton.setToolTipText("Play/Stop Pattern");
+        panel.add(playButton);
         panel.add(speedSlider);
         panel.add(noteLengthSlider);
         panel.add(volSlider);
@@ -191,21 +286,66 @@ public class Drumbox extends JPanel implements Serializable, SequenceProvider
         JButton random = new JButton("RND");
         random.setToolTipText("Random Pattern");
         random.addActionListener(e -> {
-            int loops = (int)Math.sqrt(LINES*drumSteps);
-            for (int s=0; s<loops; s++)
+            int pads = model.getLines()*model.getSteps();
+            model.randomize(Math.sqrt(pads)/pads, model.getVolume(), new Random());
+        });
+        panel.add (random);
+
+        JComboBox<Template> styles = new JComboBox<>(Template.TEMPLATES);
+        styles.setToolTipText("Style for generated patterns");
+        panel.add(styles);
+
+        JButton generate = new JButton("Gen");
+        generate.setMargin(new Insets(1, 1, 1, 1));
+        generate.setToolTipText("Generate pattern of selected style");
+        generate.addActionListener(e -> {
+            if (!seedField.getText().trim().equals(Long.toString(generator.getSeed())))
             {
-                int y = (int) (Math.random() * LINES);
-                int x = (int) (Math.random() * drumSteps);
-                JToggleButton jb = drumPanels[y].drumPads.get(x);
-                jb.doClick();
+                restartGenerator();
             }
+            generator.generate(model, (Template) styles.getSelectedItem());
         });
-        panel.add (random);
+        panel.add(generate);
+
+        seedField.setPreferredSize(new Dimension(110, 20));
+        seedField.setToolTipText("Seed of Gen, the same seed gives the same patterns again (Enter: start over)");
+        seedField.setText(Long.toString(generator.getSeed()));
+        seedField.addActionListener(e -> restartGenerator());
+        panel.add(seedField);
+
+        JButton undo = new JButton("Undo");
+        undo.setMargin(new Insets(1, 1, 1, 1));
+        undo.setToolTipText("Take back last change (Ctrl+Z)");
+        undo.addActionListener(e -> model.undo());
+        panel.add(undo);
+
+        JButton redo = new JButton("Redo");
+        redo.setMargin(new Insets(1, 1, 1, 1));
+        redo.setToolTipText("Do last undone change again (Ctrl+Y)");
+        redo.addActionListener(e -> model.redo());
+        panel.add(redo);
 
         return panel;
     }
 
 
+    /**
+     * Start the generator again with the seed from the seed field
+     * A wrong number shows the current seed again
+     */
+    private void restartGenerator ()
+    {
+        try
+        {
+            generator = new PatternGenerator(Long.parseLong(seedField.getText().trim()));
+        }
+        catch (NumberFormatException ex)
+        {
+            System.out.println(ex);
+        }
+        seedField.setText(Long.toString(generator.getSeed()));
+    }
+
     /**
      * Save button clicked
      */
@@ -222,7 +362,7 @@ public class Drumbox extends JPanel implements Serializable, SequenceProvider
             try
             {
                 String name = fc.getSelectedFile().getCanonicalPath();
-                savePattern(name);
+                model.write(name);
             }
             catch (Exception ex2)
             {
@@ -235,50 +375,14 @@ public class Drumbox extends JPanel implements Serializable, SequenceProvider
         }
     }
 
-    /**
-     * Reads instrument number from selected Combobox item and store into Integer object
-     *
-     * @param combo      Source
-     * @param instrument Destination
-     */
-    public void getInstrument (JComboBox combo, AtomicInteger instrument)
-    {
-        int i = DrumKit.readNumber((String) combo.getSelectedItem());
-        instrument.set(i);
-    }
-
-    /**
-     * Save pattern  to a file
-     *
-     * @param fname file name
-     * @throws Exception any failure
-     */
-    private void savePattern (String fname)
-    {
-        ObjectWriter w = new ObjectWriter(fname);
-        savePattern(w);
-        w.close();
-    }
-
     /**
      * Saves one pattern to disk
-     * 1. the note map containing all events
-     * 2. speed value
-     * 3. Loop value
-     * 4. drum steps (size of line)
-     * 5. note Length
-     * 6. Volume
-     * 7. Drum kit
+     *
+     * @param w the writer
      */
     public void savePattern (ObjectWriter w)
     {
-        w.putObject(eventMap);
-        w.putObject(speedSlider.getValue());
-        w.putObject(loopCount.getText());
-        w.putObject(drumSteps);
-        w.putObject(noteLengthSlider.getValue());
-        w.putObject(volSlider.getValue());
-        w.putObject(drumKits.getSelectedIndex());
+        model.write(w);
     }
 
     /**
@@ -291,7 +395,7 @@ public class Drumbox extends JPanel implements Serializable, SequenceProvider
     {
         try
         {
-            loadPattern(r);
+            model.read(r);
             return true;
         }
         catch (Exception e)
@@ -302,100 +406,70 @@ public class Drumbox extends JPanel implements Serializable, SequenceProvider
     }
 
     /**
-     * Loads one pattern from disk and initializes the drumbox
+     * Get the pattern that is shown by this Drumbox
      *
-     * @throws Exception if smth gone wrong
+     * @return the model
      */
-    private void loadPattern (ObjectReader r)
+    public PatternModel getModel ()
     {
-        loadPattern
-                ((HashMap<Long, SerMidEvent>) r.getObject(),
-                        (Integer) r.getObject(), // speed
-                        (String) r.getObject(),  // loop count
-                        (Integer) r.getObject(), // no of steps
-                        (Integer) r.getObject(), // note length
-                        (Integer) r.getObject(),  // volume
-                        (Integer) r.getObject()); // drumkits
+        return model;
     }
 
     /**
-     * Loads a pattern given by variables
-     *
-     * @param eventHashMap      Hashmap containing the events
-     * @param speedSliderValue  speed slider value
-     * @param loopCounterString loop counter (as string)
-     * @param steps             number of Drumsteps
-     * @param eventLength       length of midi event
+     * Show model values in all controls
      */
-    private void loadPattern (HashMap<Long, SerMidEvent> eventHashMap, int speedSliderValue,
-                              String loopCounterString, int steps, int eventLength,
-                              int eventVolume, int drumset)
+    private void updateFromModel ()
     {
-        speedSlider.setValue(speedSliderValue);
-        loopCount.setText(loopCounterString);
-        drumSteps = steps;
-        noteLengthSlider.setValue(eventLength);
-        volSlider.setValue(eventVolume);
-        drumKits.setSelectedIndex(drumset);
-        adjustDrumLineLength(drumSteps);
-        // switch buttons off
-//        for (DrumPadLine p : drumPanels)
-//        {
-//            p.clearButton.doClick();
-//        }
-        eventMap = eventHashMap;
-        for (Long k : eventMap.keySet())
+        updating = true;
+        speedSlider.setValue(model.getSpeed());
+        if (PatternModel.parseLoopCount(loopCount.getText()) != model.getLoopCount())
         {
-            int linenum = EventIdPair.getRowNumber(k);
-            int keynum = EventIdPair.getColumnNumber(k);
-            if (EventIdPair.isKeyOnEvent(k)) // get instrument from keyon event
-            {
-                SerMidEvent ev = eventMap.get(k); // get the event
-                int instrument = ((SerShortMessage) ev.getMessage()).getData1();
-                int volume = ((SerShortMessage) ev.getMessage()).getData2();
-                DrumPadLine panel = drumPanels[linenum];
-                setInstrument(panel.instrumentSelector, instrument);
-                for (JToggleButton toggleButton : panel.drumPads)
-                {
-                    if (toggleButton.getMnemonic() == keynum)
-                    {
-                        toggleButton.setSelected(true);
-                        toggleButton.setToolTipText(
-                                DrumPadLine.createTooltipText(instrument, volume));
-                        break;
-                    }
-                }
-            }
+            loopCount.setText(Integer.toString(model.getLoopCount()));
         }
-
-    }
-
-    /**
-     * Disables buttons after val and enables all before val
-     *
-     * @param val last button which is enabled
-     */
-    private void adjustDrumLineLength (int val)
-    {
+        noteLengthSlider.setValue(model.getNoteLength());
+        volSlider.setValue(model.getVolume());
+        if (drumKits.getSelectedIndex() != model.getDrumKit())
+        {
+            drumKits.setSelectedIndex(model.getDrumKit());
+            RealtimePlayer.get().setInstrument(model.getDrumKitProgram());
+        }
+        updating = false;
+        adjustDrumLines(model.getLines());
         for (DrumPadLine p : drumPanels)
         {
-            for (int s = 0; s < 32; s++)
-            {
-                p.drumPads.get(s).setVisible(s < val);
-            }
+            p.updateFromModel();
         }
-        //mdiClient.pack();
+        drumGrid.modelChanged();
+        playButton.tempoChanged();
     }
 
     /**
-     * Set combobox of drum line to a specific instrument
+     * Adds or removes drum lines so that they match the model
      *
-     * @param combo      The combobox
-     * @param instrument MIDI instrument nmber
+     * @param lines number of lines
      */
-    private void setInstrument (JComboBox combo, int instrument)
+    private void adjustDrumLines (int lines)
     {
-        combo.setSelectedIndex(DrumKit.getInstrumentNameIndex(instrument));
+        if (lines == drumPanels.size())
+        {
+            return;
+        }
+        boolean first = drumPanels.isEmpty();
+        while (drumPanels.size() > lines)
+        {
+            lineHeads.remove(drumPanels.remove(drumPanels.size() - 1));
+        }
+        while (drumPanels.size() < lines)
+        {
+            DrumPadLine p = new DrumPadLine(drumPanels.size(), this);
+            lineHeads.add(p);
+            drumPanels.add(p);
+        }
+        if (!first)
+        {
+            revalidate();
+            mdiClient.pack();
+        }
     }
 
     /**
@@ -405,9 +479,7 @@ public class Drumbox extends JPanel implements Serializable, SequenceProvider
      */
     public void cloneBox (Drumbox src)
     {
-        loadPattern((HashMap<Long, SerMidEvent>) src.eventMap.clone(), src.speedSlider.getValue(),
-                src.loopCount.getText(), src.drumSteps, src.noteLengthSlider.getValue(),
-                src.volSlider.getValue(), src.drumKits.getSelectedIndex());
+        model.copyFrom(src.model);
     }
 
     /**
@@ -437,86 +509,31 @@ public class Drumbox extends JPanel implements Serializable, SequenceProvider
 
     private void loadPattern (String filename)
     {
-        ObjectReader r = new ObjectReader(filename);
-        loadPattern(r);
-        r.close();
+        model.read(filename);
     }
 
     /**
-     * Create a new Sequence that can be played or saved
+     * Events of all loops for realtime playback
      *
-     * @return The sequence
+     * @return the events
      */
-    public Sequence createMIDI ()
+    @Override
+    public EventStream createStream ()
     {
-        try
-        {
-            Sequence seq = new Sequence(0.0f, 960);
-            Track tr = seq.createTrack();
-            // ---------------------------------
-            int kit = DrumKit.readNumber((String) drumKits.getSelectedItem());
-            ShortMessage prog = new ShortMessage(ShortMessage.PROGRAM_CHANGE,
-                    9, kit - 1, 0);
-            tr.add(new MidiEvent(prog, 0));
-            //---------------------------------
-            for (int s = 0; s < Integer.parseInt(loopCount.getText()); s++)
-            {
-                for (Map.Entry<Long, SerMidEvent> e : eventMap.entrySet())
-                {
-                    SerMidEvent ev = e.getValue();
-                    SerShortMessage msg = (SerShortMessage) ev.getMessage();
-                    MidiEvent clone = new MidiEvent(msg.toShortMessage(), 0);
-                    long tick = (ev.getTick() + s * drumSteps) * speedSlider.getValue();
-                    if (msg.getCommand() == ShortMessage.NOTE_ON)
-                    {
-                        clone.setTick(tick);
-                    }
-                    else
-                    {
-                        clone.setTick(tick + noteLengthSlider.getValue());
-                    }
-                    tr.add(clone);
-                }
-            }
-            return seq;
-        }
-        catch (InvalidMidiDataException e)
-        {
-            System.out.println(e);
-            return null;
-        }
+        PatternSnapshot p = model.snapshot();
+        streamSpeed = p.getSpeed();
+        return p.stream();
     }
 
     /**
-     * Put event into hashmap and track
+     * Speed changes are played by the player, without a new stream
      *
-     * @param key Event key
-     * @param ev  The Event himself
+     * @return tempo relative to the speed of the stream
      */
-    void putEvent (long key, SerMidEvent ev)
-    {
-        System.out.println("put: " + key);
-        eventMap.put(key, ev);
-    }
-
-    /**
-     * Delete Event from hashmap and track
-     *
-     * @param key Event key
-     */
-    private void deleteEvent (long key)
-    {
-        SerMidEvent e1 = eventMap.remove(key);
-        if (e1 != null)
-        {
-            System.out.println("del: " + key);
-        }
-    }
-
-    public void deleteEvent (EventIdPair ep)
+    @Override
+    public double getTempoFactor ()
     {
-        deleteEvent(ep.getKeyOnId());
-        deleteEvent(ep.getKeyOffId());
+        return (double) streamSpeed / model.getSpeed();
     }
 
     /**
@@ -526,6 +543,6 @@ public class Drumbox extends JPanel implements Serializable, SequenceProvider
      */
     public int getSpeedValue ()
     {
-        return speedSlider.getValue();
+        return model.getSpeed();
     }
 }
@@ -1,17 +1,20 @@
+import pattern.EventStream;
+import playback.LookaheadPlayer;
+
 import javax.sound.midi.MidiSystem;
-import javax.sound.midi.Sequence;
-import javax.sound.midi.Sequencer;
 import javax.swing.*;
 import java.awt.*;
 
 /**
  * Play control button to play midi sequence
+ * Events are streamed by a LookaheadPlayer, so playback starts at once
  */
 public class PlayButton extends JToggleButton
 {
     private static final ImageIcon iconPlay = new ImageIcon(Helper.loadImageFromResource("play.png"));
     private static final ImageIcon iconStop = new ImageIcon(Helper.loadImageFromResource("stop.png"));
-    private static Sequencer sequencer;
+    private static LookaheadPlayer player;
+    private static PlayButton playing;  // button of the current playback
     private final SequenceProvider sprov;
 
     /**
@@ -39,8 +42,8 @@ public class PlayButton extends JToggleButton
 
         try
         {
-            if (sequencer == null)
-                sequencer = MidiSystem.getSequencer();
+            if (player == null)
+                player = new LookaheadPlayer(MidiSystem.getReceiver());
         }
         catch (Exception e)
         {
@@ -53,32 +56,40 @@ public class PlayButton extends JToggleButton
      */
     private void playButtonClicked ()
     {
-        if (sequencer.isRunning())
+        if (player == null)
+        {
+            setSelected(false);
+        }
+        else if (!isSelected())
         {
-            sequencer.stop();
+            player.stop();
         }
         else
         {
-            try
+            EventStream st = sprov.createStream();
+            if (st == null)
             {
-                Sequence sq = sprov.createMIDI();
-                sequencer.addMetaEventListener(meta ->
-                {
-                    if (meta.getType() == 47) // end of track
-                    {
-                        setSelected(false);
-                    }
-                });
-                sequencer.open();
-                sequencer.setSequence(sq);
-                Thread.sleep(100);
-                sequencer.start();
+                setSelected(false);
+                return;
             }
-            catch (Exception ex)
+            if (playing != null && playing != this)
             {
-                System.out.println(ex);
-                setSelected(false);
+                playing.setSelected(false);
             }
+            playing = this;
+            player.setTempoFactor(sprov.getTempoFactor());
+            player.start(st, () -> SwingUtilities.invokeLater(() -> setSelected(false)));
+        }
+    }
+
+    /**
+     * Apply a new tempo of the provider to a running playback, no rebuild needed
+     */
+    public void tempoChanged ()
+    {
+        if (playing == this && player.isRunning())
+        {
+            player.setTempoFactor(sprov.getTempoFactor());
         }
     }
 
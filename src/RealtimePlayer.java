@@ -1,30 +1,82 @@
 //import com.sun.media.sound.*;
 
+import arrangement.TempoMap;
+
 import javax.sound.midi.*;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
 
 
 /**
- * Experimental player
+ * Plays single notes at once, used to audition pads and drum kits
+ * It may be called from any thread at any rate: a call only packs the
+ * message into an int and puts it into a lock-free ring, nothing is
+ * allocated and nothing waits; if the ring is full the message is dropped
+ * A sender thread takes the messages out of the ring and sends them,
+ * using ShortMessages from a preallocated pool that only this thread touches
+ * Note offs are scheduled by the sender on a timer wheel, so a note sounds
+ * as long as in the pattern; a note that is played again before its note off
+ * is stopped first, so fast clicking never stacks voices of one instrument
  */
 
 public class RealtimePlayer
 {
     // --Commented out by Inspection (8/2/2017 9:20 PM):private Instrument instruments[];
     // --Commented out by Inspection (8/2/2017 9:20 PM):private MidiChannel cc;
-    private final ShortMessage msg = new ShortMessage();
+    private static final int CAPACITY = 1024;   // messages in the ring, power of 2
+    private static final int POOL = 64;         // messages in the pool, power of 2
+    private static final int WHEEL = 512;       // slots of the timer wheel, power of 2
+    private static final long SLOT_NANOS = 2_000_000;   // time of one slot
+
+    // ring: slot i may be written when sequence[i] == tail, read when sequence[i] == head + 1
+    private final AtomicLongArray sequence = new AtomicLongArray(CAPACITY);
+    private final int[] slots = new int[CAPACITY];
+    private final int[] lengths = new int[CAPACITY];    // note length in ticks, 0 if no note
+    private final AtomicLong tail = new AtomicLong();
+    private long head;                          // sender thread only
+    private final ShortMessage[] pool = new ShortMessage[POOL];
+    private int poolPos;                        // sender thread only
+    private volatile boolean sleeping;          // sender waits for messages
+    // timer wheel, sender thread only: pending note offs by note, linked per slot
+    private final int[] wheel = new int[WHEEL];     // first note of a slot or -1
+    private final int[] nextOff = new int[128];
+    private final int[] prevOff = new int[128];
+    private final long[] offSlot = new long[128];   // slot number of the note off, -1 if none
+    private int polledLength;                       // length of the message poll returned
+    private long wheelPos;                          // last slot that has been run
+    private int pending;                            // number of scheduled note offs
+    private Thread sender;
     private Receiver receiver = null;
     private Synthesizer synth;
-    private static RealtimePlayer player = null;
 
-    public static RealtimePlayer get()
+    /**
+     * Created on first use, safely from any thread
+     */
+    private static class Holder
     {
-        if (player == null)
-            player = new RealtimePlayer();
-        return player;
+        static final RealtimePlayer player = new RealtimePlayer();
+    }
+
+    public static RealtimePlayer get ()
+    {
+        return Holder.player;
     }
 
     private RealtimePlayer ()
     {
+        for (int s = 0; s < CAPACITY; s++)
+        {
+            sequence.set(s, s);
+        }
+        for (int s = 0; s < POOL; s++)
+        {
+            pool[s] = new ShortMessage();
+        }
+        Arrays.fill(wheel, -1);
+        Arrays.fill(offSlot, -1);
+        wheelPos = System.nanoTime() / SLOT_NANOS;
         try
         {
             synth = (Synthesizer) MidiSystem.getSynthesizer();
@@ -35,19 +87,180 @@ public class RealtimePlayer
         catch (Exception e)
         {
             System.out.println(e);
+            return;
         }
+        sender = new Thread(this::run, "RealtimePlayer");
+        sender.setPriority(Thread.MAX_PRIORITY);
+        sender.setDaemon(true);
+        sender.start();
     }
 
-    public void setInstrument(int instr)
+    /**
+     * Select the drum kit
+     *
+     * @param instr program number, 1-based
+     */
+    public void setInstrument (int instr)
     {
 //        instr--;
 //        Instrument in = instruments[instr];
 //        synthesizer.loadInstrument(in);
+        offer(ShortMessage.PROGRAM_CHANGE | 9, instr - 1, 0);
+    }
+
+    /**
+     * Play a drum note
+     * The note off follows after the note length at the default tempo,
+     * like the note would sound in the pattern
+     *
+     * @param note     the note
+     * @param velocity volume, nothing is played if 0
+     * @param length   note length in ticks, as set by the note length slider
+     */
+    public void play (int note, int velocity, int length)
+    {
+        if (velocity > 0)
+        {
+            offer(ShortMessage.NOTE_ON | 9, note, velocity, Math.max(1, length));
+        }
+    }
+
+    private boolean offer (int status, int data1, int data2)
+    {
+        return offer(status, data1, data2, 0);
+    }
+
+    /**
+     * Put a message into the ring
+     *
+     * @param status status byte with channel
+     * @param data1  first data byte
+     * @param data2  second data byte
+     * @param length ticks until the note off of a note on, 0 for other messages
+     * @return false if the message has been dropped
+     */
+    private boolean offer (int status, int data1, int data2, int length)
+    {
+        if (sender == null)
+        {
+            return false;
+        }
+        int idx;
+        long pos;
+        while (true)
+        {
+            pos = tail.get();
+            idx = (int) pos & (CAPACITY - 1);
+            long seq = sequence.get(idx);
+            if (seq == pos)
+            {
+                if (tail.compareAndSet(pos, pos + 1))
+                {
+                    break;
+                }
+            }
+            else if (seq < pos)
+            {
+                return false;   // full
+            }
+            // else another thread took the slot, try the next one
+        }
+        slots[idx] = status & 0xff | (data1 & 0x7f) << 8 | (data2 & 0x7f) << 16;
+        lengths[idx] = length;
+        sequence.set(idx, pos + 1);     // publishes the slot
+        if (sleeping)
+        {
+            LockSupport.unpark(sender);
+        }
+        return true;
+    }
+
+    /**
+     * Take a message from the ring, sender thread only
+     *
+     * @return the packed message or -1 if the ring is empty
+     */
+    private int poll ()
+    {
+        int idx = (int) head & (CAPACITY - 1);
+        if (sequence.get(idx) != head + 1)
+        {
+            return -1;
+        }
+        int packed = slots[idx];
+        polledLength = lengths[idx];
+        sequence.set(idx, head + CAPACITY);     // free for the next round
+        head++;
+        return packed;
+    }
+
+    /**
+     * Sender thread: sends all messages of the ring and the note offs that are due,
+     * sleeps while there is nothing to do
+     */
+    private void run ()
+    {
+        while (true)
+        {
+            int packed = poll();
+            if (packed < 0)
+            {
+                long now = System.nanoTime();
+                runWheel(now / SLOT_NANOS);
+                sleeping = true;
+                packed = poll();    // a message may have come before sleeping was seen
+                if (packed < 0)
+                {
+                    if (pending > 0)
+                    {
+                        LockSupport.parkNanos(this, (wheelPos + 1) * SLOT_NANOS - now);
+                    }
+                    else
+                    {
+                        LockSupport.park(this);
+                    }
+                    sleeping = false;
+                    continue;
+                }
+                sleeping = false;
+            }
+            int status = packed & 0xff;
+            int note = packed >> 8 & 0xff;
+            if (polledLength > 0)
+            {
+                long now = System.nanoTime();
+                runWheel(now / SLOT_NANOS);     // also when the ring never gets empty
+                if (offSlot[note] >= 0)
+                {
+                    unschedule(note);
+                    send(ShortMessage.NOTE_OFF | 9, note, 0);
+                }
+                send(status, note, packed >> 16 & 0xff);
+                long micros = (long) polledLength * TempoMap.DEFAULT_TEMPO / TempoMap.RESOLUTION;
+                long slot = (now + micros * 1000 + SLOT_NANOS - 1) / SLOT_NANOS;
+                schedule(note, Math.max(slot, wheelPos + 1));
+            }
+            else
+            {
+                send(status, note, packed >> 16 & 0xff);
+            }
+        }
+    }
+
+    /**
+     * Send a message from the pool
+     *
+     * @param status status byte with channel
+     * @param data1  first data byte
+     * @param data2  second data byte
+     */
+    private void send (int status, int data1, int data2)
+    {
+        ShortMessage msg = pool[poolPos++ & (POOL - 1)];
         try
         {
-            msg.setMessage(ShortMessage.PROGRAM_CHANGE, 9,
-                    instr-1, 0);
-            receiver.send (msg, 0);
+            msg.setMessage(status, data1, data2);
+            receiver.send(msg, -1);
         }
         catch (InvalidMidiDataException e)
         {
@@ -55,18 +268,76 @@ public class RealtimePlayer
         }
     }
 
-    public void play(int note)
+    /**
+     * Put the note off of a note on the wheel
+     *
+     * @param note the note, must not be scheduled
+     * @param slot slot number when it's due
+     */
+    private void schedule (int note, long slot)
     {
-        try
+        int s = (int) slot & (WHEEL - 1);
+        offSlot[note] = slot;
+        prevOff[note] = -1;
+        nextOff[note] = wheel[s];
+        if (wheel[s] >= 0)
         {
-            msg.setMessage(ShortMessage.NOTE_ON, 9, note, 127);
-            receiver.send(msg, 0);
-            msg.setMessage(ShortMessage.NOTE_ON, 9, note, 0);
-            receiver.send(msg, 100);
+            prevOff[wheel[s]] = note;
         }
-        catch (Exception e)
+        wheel[s] = note;
+        pending++;
+    }
+
+    /**
+     * Take the note off of a note from the wheel
+     *
+     * @param note the note, must be scheduled
+     */
+    private void unschedule (int note)
+    {
+        int s = (int) offSlot[note] & (WHEEL - 1);
+        if (prevOff[note] >= 0)
         {
-            System.out.println(e);
+            nextOff[prevOff[note]] = nextOff[note];
+        }
+        else
+        {
+            wheel[s] = nextOff[note];
+        }
+        if (nextOff[note] >= 0)
+        {
+            prevOff[nextOff[note]] = prevOff[note];
+        }
+        offSlot[note] = -1;
+        pending--;
+    }
+
+    /**
+     * Send all note offs that are due
+     * Slots after the last run are visited once, a note off that is more
+     * than one turn of the wheel away stays in its slot
+     *
+     * @param now current slot number
+     */
+    private void runWheel (long now)
+    {
+        if (pending > 0)
+        {
+            for (long p = Math.max(wheelPos + 1, now - WHEEL + 1); p <= now; p++)
+            {
+                int note = wheel[(int) p & (WHEEL - 1)];
+                while (note >= 0)
+                {
+                    int next = nextOff[note];
+                    if (offSlot[note] <= now)
+                    {
+                        unschedule(note);
+                        send(ShortMessage.NOTE_OFF | 9, note, 0);
+                    }
+                    note = next;
+                }
+            }
         }
+        wheelPos = Math.max(wheelPos, now);
     }
 }
@@ -1,6 +1,21 @@
-import javax.sound.midi.Sequence;
+import pattern.EventStream;
 
 public interface SequenceProvider
 {
-    Sequence createMIDI ();
+    /**
+     * Events for realtime playback, all loops included
+     *
+     * @return the events or null if there is nothing to play
+     */
+    EventStream createStream ();
+
+    /**
+     * Tempo of the stream, can change while it's played
+     *
+     * @return 1 is the tempo the stream was created with
+     */
+    default double getTempoFactor ()
+    {
+        return 1;
+    }
 }
@@ -0,0 +1,340 @@
+package arrangement;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.function.IntToLongFunction;
+
+/**
+ * Parsed arrangement of a song
+ * Syntax:
+ * <pre>
+ *   song    := item { "," item }
+ *   item    := layer { ("x" | "*") number }    played number times
+ *              [ "@" number [ ">" number ] ]   tempo in percent, or a ramp
+ *   layer   := atom { "+" atom }                played together
+ *   atom    := number                           pattern number
+ *            | name                             use of a section
+ *            | "(" song ")"
+ *            | "[" name ":" song "]"            section, defined and played here
+ * </pre>
+ * Example: "intro, (1+3)x8, [verse: 2x4], verse x2 @110, outro @100>50"
+ * Sections may be used before they are defined
+ * A plain list like "0,1,1,2+3" is a valid arrangement too
+ */
+public class Arrangement
+{
+    private final Node root;
+    private final String text;
+
+    private Arrangement (Node root, String text)
+    {
+        this.root = root;
+        this.text = text;
+    }
+
+    /**
+     * Parse an arrangement
+     *
+     * @param text the text
+     * @return the arrangement
+     * @throws ParseException if the text is wrong, the error offset tells where
+     */
+    public static Arrangement parse (String text) throws ParseException
+    {
+        Parser p = new Parser(text);
+        Node root = p.sequence();
+        if (p.pos < text.length())
+        {
+            throw p.error("Unexpected '" + text.charAt(p.pos) + "'");
+        }
+        HashMap<String, Node.Section> sections = new HashMap<>();
+        ArrayList<Node.Reference> refs = new ArrayList<>();
+        Node.collect(root, sections, refs);
+        for (Node.Reference r : refs)
+        {
+            r.section = sections.get(r.name);
+            if (r.section == null)
+            {
+                throw new ParseException("Unknown section: " + r.name, r.position);
+            }
+        }
+        checkCycles(root, new HashSet<>(), new HashSet<>());
+        return new Arrangement(root, text);
+    }
+
+    /**
+     * Make sure no section uses itself
+     *
+     * @param n      the node to check
+     * @param active sections that are being checked
+     * @param done   sections that are ok
+     * @throws ParseException if there is a cycle
+     */
+    private static void checkCycles (Node n, HashSet<Node.Section> active, HashSet<Node.Section> done)
+            throws ParseException
+    {
+        Node.Section s = null;
+        int position = 0;
+        if (n instanceof Node.Section)
+        {
+            s = (Node.Section) n;
+        }
+        else if (n instanceof Node.Reference)
+        {
+            s = ((Node.Reference) n).section;
+            position = ((Node.Reference) n).position;
+        }
+        if (s != null)
+        {
+            if (active.contains(s))
+            {
+                throw new ParseException("Section uses itself: " + s.name, position);
+            }
+            if (done.add(s))
+            {
+                active.add(s);
+                checkCycles(s.body, active, done);
+                active.remove(s);
+            }
+            return;
+        }
+        if (n instanceof Node.Sequence || n instanceof Node.Layer)
+        {
+            List<Node> items = n instanceof Node.Sequence ? ((Node.Sequence) n).items : ((Node.Layer) n).items;
+            for (Node c : items)
+            {
+                checkCycles(c, active, done);
+            }
+        }
+        else if (n instanceof Node.Repeat)
+        {
+            checkCycles(((Node.Repeat) n).item, active, done);
+        }
+        else if (n instanceof Node.Tempo)
+        {
+            checkCycles(((Node.Tempo) n).item, active, done);
+        }
+    }
+
+    /**
+     * Compile into a timeline
+     *
+     * @param lengths gives the length of a pattern in ticks
+     * @return the timeline
+     */
+    public Timeline toTimeline (IntToLongFunction lengths)
+    {
+        Timeline t = new Timeline();
+        t.setLength(root.place(t, 0, new Node.Context(lengths)));
+        return t;
+    }
+
+    /**
+     * Get the text this was parsed from
+     *
+     * @return the text
+     */
+    public String getText ()
+    {
+        return text;
+    }
+
+    @Override
+    public String toString ()
+    {
+        return root.toString();
+    }
+
+    /**
+     * Recursive descent parser
+     */
+    private static class Parser
+    {
+        private final String text;
+        private int pos;
+
+        Parser (String text)
+        {
+            this.text = text;
+        }
+
+        ParseException error (String msg)
+        {
+            return new ParseException(msg + " at " + pos, pos);
+        }
+
+        /**
+         * Skip white space
+         *
+         * @return next char or 0 at end
+         */
+        private char peek ()
+        {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos)))
+            {
+                pos++;
+            }
+            return pos < text.length() ? text.charAt(pos) : 0;
+        }
+
+        private void expect (char c) throws ParseException
+        {
+            if (peek() != c)
+            {
+                throw error("'" + c + "' expected");
+            }
+            pos++;
+        }
+
+        Node sequence () throws ParseException
+        {
+            ArrayList<Node> items = new ArrayList<>();
+            items.add(item());
+            while (peek() == ',')
+            {
+                pos++;
+                items.add(item());
+            }
+            return items.size() == 1 ? items.get(0) : new Node.Sequence(items);
+        }
+
+        private Node item () throws ParseException
+        {
+            Node n = layer();
+            int count;
+            while ((count = repeatCount()) >= 0)
+            {
+                n = new Node.Repeat(n, count);
+            }
+            if (peek() == '@')
+            {
+                pos++;
+                int from = percent();
+                int to = from;
+                if (peek() == '>')
+                {
+                    pos++;
+                    to = percent();
+                }
+                n = new Node.Tempo(n, from, to);
+            }
+            return n;
+        }
+
+        private int percent () throws ParseException
+        {
+            if (!Character.isDigit(peek()))
+            {
+                throw error("Tempo expected");
+            }
+            int start = pos;
+            int p = number();
+            if (p < 10 || p > 1000)
+            {
+                pos = start;
+                throw error("Tempo must be 10 to 1000 percent");
+            }
+            return p;
+        }
+
+        /**
+         * Read "x number" or "* number"
+         *
+         * @return the number or -1 if there is no repeat
+         */
+        private int repeatCount () throws ParseException
+        {
+            char c = peek();
+            if (c != 'x' && c != 'X' && c != '*')
+            {
+                return -1;
+            }
+            int start = pos;
+            pos++;
+            if (!Character.isDigit(peek()))
+            {
+                pos = start;
+                return -1;
+            }
+            return number();
+        }
+
+        private Node layer () throws ParseException
+        {
+            ArrayList<Node> items = new ArrayList<>();
+            items.add(atom());
+            while (peek() == '+')
+            {
+                pos++;
+                items.add(atom());
+            }
+            return items.size() == 1 ? items.get(0) : new Node.Layer(items);
+        }
+
+        private Node atom () throws ParseException
+        {
+            char c = peek();
+            if (Character.isDigit(c))
+            {
+                return new Node.Pattern(number());
+            }
+            if (c == '(')
+            {
+                pos++;
+                Node n = sequence();
+                expect(')');
+                return n;
+            }
+            if (c == '[')
+            {
+                pos++;
+                peek();     // skips white space
+                int start = pos;
+                String name = name();
+                expect(':');
+                Node body = sequence();
+                expect(']');
+                return new Node.Section(name, body, start);
+            }
+            int start = pos;
+            return new Node.Reference(name(), start);
+        }
+
+        private int number () throws ParseException
+        {
+            int start = pos;
+            while (pos < text.length() && Character.isDigit(text.charAt(pos)))
+            {
+                pos++;
+            }
+            try
+            {
+                return Integer.parseInt(text.substring(start, pos));
+            }
+            catch (NumberFormatException e)
+            {
+                pos = start;
+                throw error("Number too large");
+            }
+        }
+
+        private String name () throws ParseException
+        {
+            char c = peek();
+            if (!Character.isLetter(c) && c != '_')
+            {
+                throw error(c == 0 ? "Unexpected end" : "Unexpected '" + c + "'");
+            }
+            int start = pos;
+            while (pos < text.length() && (Character.isLetterOrDigit(text.charAt(pos))
+                    || text.charAt(pos) == '_'))
+            {
+                pos++;
+            }
+            return text.substring(start, pos);
+        }
+    }
+}
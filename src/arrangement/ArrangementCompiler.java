@@ -0,0 +1,189 @@
+package arrangement;
+
+import pattern.PatternSnapshot;
+
+import javax.sound.midi.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Builds a song from patterns and an arrangement
+ * Every pattern is compiled only once, patterns with the same events
+ * (e.g. cloned boxes) share one EventBuffer
+ * Every entry of the timeline is an offset copy of such a buffer
+ * Pattern speeds and tempo changes become tempo events, see TempoMap
+ * Patterns are compiled under the lock, so cursors may be built from several threads
+ */
+public class ArrangementCompiler
+{
+    private final PatternSnapshot[] patterns;
+    private final EventBuffer[] buffers;    // by pattern number, built on first use
+    private final HashMap<Long, List<PatternSnapshot>> byHash = new HashMap<>();
+    private final HashMap<PatternSnapshot, EventBuffer> compiled = new HashMap<>();
+    private int compileCount;
+
+    /**
+     * Constructor
+     *
+     * @param patterns the patterns, pattern numbers of the arrangement are indices into that array
+     */
+    public ArrangementCompiler (PatternSnapshot[] patterns)
+    {
+        this.patterns = patterns.clone();
+        buffers = new EventBuffer[patterns.length];
+    }
+
+    /**
+     * Get the compiled events of a pattern
+     *
+     * @param idx pattern number
+     * @return the events
+     */
+    public synchronized EventBuffer getEvents (int idx)
+    {
+        if (buffers[idx] == null)
+        {
+            buffers[idx] = lookup(patterns[idx]);
+        }
+        return buffers[idx];
+    }
+
+    /**
+     * Find a buffer of a pattern with the same events or compile it
+     *
+     * @param p the pattern
+     * @return the events
+     */
+    private EventBuffer lookup (PatternSnapshot p)
+    {
+        List<PatternSnapshot> same = byHash.computeIfAbsent(p.eventHash(), h -> new ArrayList<>());
+        for (PatternSnapshot s : same)
+        {
+            if (s.sameEvents(p))
+            {
+                return compiled.get(s);
+            }
+        }
+        EventBuffer b = EventBuffer.of(p);
+        compileCount++;
+        same.add(p);
+        compiled.put(p, b);
+        return b;
+    }
+
+    /**
+     * Number of patterns that really were compiled
+     *
+     * @return compile count
+     */
+    public synchronized int getCompileCount ()
+    {
+        return compileCount;
+    }
+
+    /**
+     * Get length of a pattern in the song
+     *
+     * @param idx pattern number
+     * @return ticks from its start to the start of the next pattern
+     */
+    public long getLength (int idx)
+    {
+        if (idx < 0 || idx >= patterns.length)
+        {
+            throw new IllegalArgumentException("No pattern " + idx);
+        }
+        return getEvents(idx).getLastTick() + patterns[idx].getSpeed();
+    }
+
+    /**
+     * Stream the events of the song in tick order without rendering it
+     * Used to write long songs in bounded memory
+     *
+     * @param timeline    the compiled arrangement
+     * @param masterTempo all tempos are multiplied by that
+     * @param notesOnly   true: no program changes
+     * @return cursor over all events of the song
+     * @throws InvalidMidiDataException if a message can't be built
+     */
+    public SongCursor cursor (Timeline timeline, float masterTempo, boolean notesOnly)
+            throws InvalidMidiDataException
+    {
+        return renderer(timeline, masterTempo, notesOnly).cursor();
+    }
+
+    /**
+     * Render the events of the song on all cores, see SongRenderer.render
+     * Faster than cursor() for long songs, but takes memory for all events
+     *
+     * @param timeline    the compiled arrangement
+     * @param masterTempo all tempos are multiplied by that
+     * @param notesOnly   true: no program changes
+     * @return cursor over all events of the song, like from cursor()
+     * @throws InvalidMidiDataException if a message can't be built
+     */
+    public SongCursor render (Timeline timeline, float masterTempo, boolean notesOnly)
+            throws InvalidMidiDataException
+    {
+        return renderer(timeline, masterTempo, notesOnly).render();
+    }
+
+    /**
+     * Cut the song into sections, to render audio piece by piece
+     * Every entry gets the program change of its pattern, unless notesOnly
+     *
+     * @param timeline    the compiled arrangement
+     * @param masterTempo all tempos are multiplied by that
+     * @param notesOnly   true: no program changes
+     * @return the sections, see SongRenderer.sections
+     * @throws InvalidMidiDataException if a message can't be built
+     */
+    public Section[] sections (Timeline timeline, float masterTempo, boolean notesOnly)
+            throws InvalidMidiDataException
+    {
+        MidiMessage[] changes = new MidiMessage[timeline.size()];
+        for (int e = 0; e < changes.length; e++)
+        {
+            int prg = patterns[timeline.getPattern(e)].getDrumKitProgram() - 1;
+            changes[e] = notesOnly ? null : new ShortMessage(ShortMessage.PROGRAM_CHANGE, 9, prg, 0);
+        }
+        return new SongRenderer(timeline, entryEvents(timeline), changes, getTempoMap(timeline), masterTempo)
+                .sections();
+    }
+
+    private SongRenderer renderer (Timeline timeline, float masterTempo, boolean notesOnly)
+            throws InvalidMidiDataException
+    {
+        EventBuffer[] events = entryEvents(timeline);
+        int[] programs = new int[patterns.length];
+        for (int i = 0; i < patterns.length; i++)
+        {
+            programs[i] = patterns[i].getDrumKitProgram() - 1;
+        }
+        MidiMessage[] changes = notesOnly ? new MidiMessage[events.length]
+                : SongRenderer.programChanges(timeline, programs);
+        return new SongRenderer(timeline, events, changes, getTempoMap(timeline), masterTempo);
+    }
+
+    private EventBuffer[] entryEvents (Timeline timeline)
+    {
+        EventBuffer[] events = new EventBuffer[timeline.size()];
+        for (int e = 0; e < events.length; e++)
+        {
+            events[e] = getEvents(timeline.getPattern(e));     // compile here, the renderer only reads
+        }
+        return events;
+    }
+
+    /**
+     * Get the tempo of a song, pattern speeds become tempos
+     *
+     * @param timeline the compiled arrangement
+     * @return the tempo map
+     */
+    public TempoMap getTempoMap (Timeline timeline)
+    {
+        return TempoMap.of(timeline, i -> patterns[i].getSpeed());
+    }
+}
@@ -0,0 +1,142 @@
+package arrangement;
+
+import pattern.PatternCursor;
+import pattern.PatternSnapshot;
+
+import javax.sound.midi.MidiMessage;
+import java.util.Arrays;
+
+/**
+ * Events sorted by tick
+ * A compiled pattern holds the events of one pass and the number of loops,
+ * the repeats are generated when the pattern is placed into a song
+ * (see SongRenderer), so memory doesn't grow with the loop count
+ * The events of a Section are an EventBuffer too, with one loop
+ */
+public class EventBuffer
+{
+    private int size;
+    private long[] ticks;
+    private MidiMessage[] messages;
+    private long passLength;
+    private int loops = 1;
+
+    EventBuffer ()
+    {
+        this(64);
+    }
+
+    EventBuffer (int capacity)
+    {
+        ticks = new long[Math.max(capacity, 1)];
+        messages = new MidiMessage[ticks.length];
+    }
+
+    /**
+     * Compile one pass of a pattern
+     *
+     * @param p the pattern
+     * @return the events
+     */
+    public static EventBuffer of (PatternSnapshot p)
+    {
+        EventBuffer b = new EventBuffer();
+        PatternCursor c = p.passCursor();
+        while (c.next())
+        {
+            b.add(c.getTick(), c.getMessage());
+        }
+        b.passLength = c.getPassLength();
+        b.loops = p.getLoopCount();
+        return b;
+    }
+
+    void add (long tick, MidiMessage msg)
+    {
+        if (size == ticks.length)
+        {
+            ticks = Arrays.copyOf(ticks, size * 2);
+            messages = Arrays.copyOf(messages, size * 2);
+        }
+        ticks[size] = tick;
+        messages[size] = msg;
+        size++;
+    }
+
+    public int size ()
+    {
+        return size;
+    }
+
+    public long getTick (int idx)
+    {
+        return ticks[idx];
+    }
+
+    /**
+     * Get message of an event
+     * Messages are shared and must not be changed
+     *
+     * @param idx index of event
+     * @return the message
+     */
+    public MidiMessage getMessage (int idx)
+    {
+        return messages[idx];
+    }
+
+    /**
+     * Get tick of the last event of the last loop
+     *
+     * @return the tick or 0 if there are no events
+     */
+    public long getLastTick ()
+    {
+        return size == 0 || loops <= 0 ? 0 : ticks[size - 1] + (loops - 1) * passLength;
+    }
+
+    /**
+     * Get number of times the events are played
+     *
+     * @return loop count
+     */
+    public int getLoops ()
+    {
+        return loops;
+    }
+
+    /**
+     * Get distance of the loops
+     *
+     * @return ticks, events may reach behind it
+     */
+    public long getPassLength ()
+    {
+        return passLength;
+    }
+
+    /**
+     * Find the first event at or after a tick
+     *
+     * @param tick the tick
+     * @return index of the event or size() if there is none
+     */
+    int indexOf (long tick)
+    {
+        int lo = 0;
+        int hi = size;
+        while (lo < hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            if (ticks[mid] < tick)
+            {
+                lo = mid + 1;
+            }
+            else
+            {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
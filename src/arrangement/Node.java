@@ -0,0 +1,326 @@
+package arrangement;
+
+import java.text.ParseException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.function.IntToLongFunction;
+
+/**
+ * Element of a parsed arrangement
+ */
+abstract class Node
+{
+    /**
+     * State of one compile run
+     */
+    static class Context
+    {
+        final IntToLongFunction lengths;    // length of a pattern in ticks
+        final IdentityHashMap<Node, Timeline> placed = new IdentityHashMap<>();
+
+        Context (IntToLongFunction lengths)
+        {
+            this.lengths = lengths;
+        }
+    }
+
+    /**
+     * Put this element into a timeline
+     *
+     * @param t     the timeline
+     * @param start start tick
+     * @param ctx   compile state
+     * @return length of this element in ticks
+     */
+    abstract long place (Timeline t, long start, Context ctx);
+
+    /**
+     * Place a node once at tick 0 and keep the result for further calls
+     *
+     * @param n   the node
+     * @param ctx compile state
+     * @return the node on its own timeline
+     */
+    static Timeline placeOnce (Node n, Context ctx)
+    {
+        Timeline sub = ctx.placed.get(n);
+        if (sub == null)
+        {
+            sub = new Timeline();
+            sub.setLength(n.place(sub, 0, ctx));
+            ctx.placed.put(n, sub);
+        }
+        return sub;
+    }
+
+    /**
+     * A single pattern
+     */
+    static class Pattern extends Node
+    {
+        final int number;
+
+        Pattern (int number)
+        {
+            this.number = number;
+        }
+
+        @Override
+        long place (Timeline t, long start, Context ctx)
+        {
+            t.add(number, start);
+            return ctx.lengths.applyAsLong(number);
+        }
+
+        @Override
+        public String toString ()
+        {
+            return Integer.toString(number);
+        }
+    }
+
+    /**
+     * Elements played one after another
+     */
+    static class Sequence extends Node
+    {
+        final List<Node> items;
+
+        Sequence (List<Node> items)
+        {
+            this.items = items;
+        }
+
+        @Override
+        long place (Timeline t, long start, Context ctx)
+        {
+            long pos = start;
+            for (Node n : items)
+            {
+                pos += n.place(t, pos, ctx);
+            }
+            return pos - start;
+        }
+
+        @Override
+        public String toString ()
+        {
+            return "(" + join(items, ", ") + ")";
+        }
+    }
+
+    /**
+     * Elements played together, as long as the longest one
+     */
+    static class Layer extends Node
+    {
+        final List<Node> items;
+
+        Layer (List<Node> items)
+        {
+            this.items = items;
+        }
+
+        @Override
+        long place (Timeline t, long start, Context ctx)
+        {
+            long length = 0;
+            for (Node n : items)
+            {
+                length = Math.max(length, n.place(t, start, ctx));
+            }
+            return length;
+        }
+
+        @Override
+        public String toString ()
+        {
+            return "(" + join(items, "+") + ")";
+        }
+    }
+
+    /**
+     * An element played several times
+     * It is placed only once, the timeline keeps it with the repeat count
+     */
+    static class Repeat extends Node
+    {
+        final Node item;
+        final int count;
+
+        Repeat (Node item, int count)
+        {
+            this.item = item;
+            this.count = count;
+        }
+
+        @Override
+        long place (Timeline t, long start, Context ctx)
+        {
+            Timeline sub = placeOnce(item, ctx);
+            t.addRepeat(sub, start, count, sub.getLength());
+            return count * sub.getLength();
+        }
+
+        @Override
+        public String toString ()
+        {
+            return item + " x" + count;
+        }
+    }
+
+    /**
+     * An element played at another tempo, or with a tempo ramp
+     */
+    static class Tempo extends Node
+    {
+        final Node item;
+        final int from;     // percent
+        final int to;
+
+        Tempo (Node item, int from, int to)
+        {
+            this.item = item;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        long place (Timeline t, long start, Context ctx)
+        {
+            long length = item.place(t, start, ctx);
+            t.addTempo(start, start + length, from, to);
+            return length;
+        }
+
+        @Override
+        public String toString ()
+        {
+            return "(" + item + " @" + from + (to != from ? ">" + to : "") + ")";
+        }
+    }
+
+    /**
+     * A named section, played where it is defined and where its name is used
+     */
+    static class Section extends Node
+    {
+        final String name;
+        final Node body;
+        final int position;     // of the name in the source text
+
+        Section (String name, Node body, int position)
+        {
+            this.name = name;
+            this.body = body;
+            this.position = position;
+        }
+
+        @Override
+        long place (Timeline t, long start, Context ctx)
+        {
+            Timeline sub = placeOnce(body, ctx);
+            t.addAll(sub, start);
+            return sub.getLength();
+        }
+
+        @Override
+        public String toString ()
+        {
+            return "[" + name + ": " + body + "]";
+        }
+    }
+
+    /**
+     * Use of a section name
+     */
+    static class Reference extends Node
+    {
+        final String name;
+        final int position;     // in the source text
+        Section section;        // set after parsing
+
+        Reference (String name, int position)
+        {
+            this.name = name;
+            this.position = position;
+        }
+
+        @Override
+        long place (Timeline t, long start, Context ctx)
+        {
+            Timeline sub = placeOnce(section.body, ctx);
+            t.addAll(sub, start);
+            return sub.getLength();
+        }
+
+        @Override
+        public String toString ()
+        {
+            return name;
+        }
+    }
+
+    static String join (List<Node> items, String separator)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (Node n : items)
+        {
+            if (sb.length() > 0)
+            {
+                sb.append(separator);
+            }
+            sb.append(n);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Collect all section definitions below a node
+     *
+     * @param n        the node
+     * @param sections found sections by name
+     * @param refs     found references
+     * @throws ParseException if a name is defined twice
+     */
+    static void collect (Node n, HashMap<String, Section> sections, List<Reference> refs)
+            throws ParseException
+    {
+        if (n instanceof Sequence)
+        {
+            for (Node c : ((Sequence) n).items)
+            {
+                collect(c, sections, refs);
+            }
+        }
+        else if (n instanceof Layer)
+        {
+            for (Node c : ((Layer) n).items)
+            {
+                collect(c, sections, refs);
+            }
+        }
+        else if (n instanceof Repeat)
+        {
+            collect(((Repeat) n).item, sections, refs);
+        }
+        else if (n instanceof Tempo)
+        {
+            collect(((Tempo) n).item, sections, refs);
+        }
+        else if (n instanceof Section)
+        {
+            Section s = (Section) n;
+            if (sections.put(s.name, s) != null)
+            {
+                throw new ParseException("Section defined twice: " + s.name, s.position);
+            }
+            collect(s.body, sections, refs);
+        }
+        else if (n instanceof Reference)
+        {
+            refs.add((Reference) n);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package arrangement;
+
+import pattern.EventStream;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiMessage;
+
+/**
+ * Part of a song that is rendered on its own: the timeline entries that start together
+ * The events are in microseconds from the start of the section, so the
+ * tempo of the song is already applied and sections with the same events
+ * sound the same wherever they are in the song
+ * Every entry has the program change of its pattern (if the song has
+ * program changes), so a section doesn't depend on the sections before
+ */
+public class Section
+{
+    private final long start;
+    private final EventBuffer events;
+
+    /**
+     * Constructor
+     *
+     * @param start  microseconds from the start of the song
+     * @param events events, ticks are microseconds from the start of the section
+     */
+    Section (long start, EventBuffer events)
+    {
+        this.start = start;
+        this.events = events;
+    }
+
+    /**
+     * Get time of the section in the song
+     *
+     * @return microseconds from the start of the song
+     */
+    public long getStart ()
+    {
+        return start;
+    }
+
+    /**
+     * Stream the section: a tempo event that makes a tick one microsecond, then the events
+     *
+     * @return the events
+     */
+    public EventStream stream ()
+    {
+        MetaMessage tempo;
+        try
+        {
+            tempo = TempoMap.tempoMessage(TempoMap.RESOLUTION);
+        }
+        catch (InvalidMidiDataException e)
+        {
+            throw new IllegalStateException(e);
+        }
+        return new EventStream()
+        {
+            private int pos = -1;
+
+            @Override
+            public boolean next ()
+            {
+                return ++pos <= events.size();
+            }
+
+            @Override
+            public long getTick ()
+            {
+                return pos == 0 ? 0 : events.getTick(pos - 1);
+            }
+
+            @Override
+            public MidiMessage getMessage ()
+            {
+                return pos == 0 ? tempo : events.getMessage(pos - 1);
+            }
+        };
+    }
+}
@@ -0,0 +1,149 @@
+package arrangement;
+
+import pattern.EventStream;
+
+import javax.sound.midi.MidiMessage;
+
+/**
+ * Walks through the events of a song in tick order
+ * The events are taken from several sorted sources by a k-way merge,
+ * equal ticks are taken from the source with the lower index first
+ * Nothing is copied, so a song of any length can be streamed
+ */
+public class SongCursor implements EventStream
+{
+    private final Source[] sources;
+    private final int[] heap;       // source indices, the one with the lowest head first
+    private final long[] heads;     // tick of the next event of every source
+    private int n;
+    private long tick;
+    private MidiMessage message;
+
+    /**
+     * Constructor
+     *
+     * @param sources the sources, each sorted by tick
+     */
+    SongCursor (Source[] sources)
+    {
+        this.sources = sources;
+        heap = new int[sources.length];
+        heads = new long[sources.length];
+        for (int s = 0; s < sources.length; s++)
+        {
+            if (sources[s].size() > 0)
+            {
+                heads[s] = sources[s].tick(0);
+                heap[n++] = s;
+            }
+        }
+        for (int i = n / 2 - 1; i >= 0; i--)
+        {
+            siftDown(i);
+        }
+    }
+
+    /**
+     * Move to the next event
+     *
+     * @return false if there are no more events
+     */
+    @Override
+    public boolean next ()
+    {
+        if (n == 0)
+        {
+            return false;
+        }
+        int s = heap[0];
+        Source src = sources[s];
+        tick = heads[s];
+        message = src.message(src.pos);
+        if (++src.pos < src.size())
+        {
+            heads[s] = src.tick(src.pos);
+        }
+        else
+        {
+            heap[0] = heap[--n];
+        }
+        siftDown(0);
+        return true;
+    }
+
+    @Override
+    public long getTick ()
+    {
+        return tick;
+    }
+
+    /**
+     * Get message of the current event
+     * Messages are shared and must not be changed
+     *
+     * @return the message
+     */
+    @Override
+    public MidiMessage getMessage ()
+    {
+        return message;
+    }
+
+    /**
+     * Get number of all events
+     *
+     * @return the number
+     */
+    int size ()
+    {
+        int size = 0;
+        for (Source s : sources)
+        {
+            size += s.size();
+        }
+        return size;
+    }
+
+    private boolean less (int a, int b)
+    {
+        return heads[a] < heads[b] || heads[a] == heads[b] && a < b;
+    }
+
+    private void siftDown (int i)
+    {
+        int s = heap[i];
+        while (true)
+        {
+            int c = 2 * i + 1;
+            if (c >= n)
+            {
+                break;
+            }
+            if (c + 1 < n && less(heap[c + 1], heap[c]))
+            {
+                c++;
+            }
+            if (!less(heap[c], s))
+            {
+                break;
+            }
+            heap[i] = heap[c];
+            i = c;
+        }
+        heap[i] = s;
+    }
+
+    /**
+     * A sorted list of events that takes part in a merge
+     */
+    static abstract class Source
+    {
+        int pos;
+
+        abstract int size ();
+
+        abstract long tick (int idx);
+
+        abstract MidiMessage message (int idx);
+    }
+}
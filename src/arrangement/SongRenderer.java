@@ -0,0 +1,420 @@
+package arrangement;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.ShortMessage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+/**
+ * Turns a Timeline into the events of the song, sorted by tick
+ * The events of all entries are joined by a k-way merge (see SongCursor),
+ * either streamed or rendered in chunks on a ForkJoinPool
+ * Events with the same tick keep the order of the timeline entries
+ */
+class SongRenderer
+{
+    private static final int CHUNK = 32;    // minimum entries per chunk
+
+    private final Timeline timeline;
+    private final EventBuffer[] events;     // by timeline entry
+    private final MidiMessage[] programs;   // by timeline entry, null if there is no program change
+    private final TempoMap tempoMap;
+    private final float masterTempo;
+
+    /**
+     * Constructor
+     *
+     * @param timeline    the song
+     * @param events      compiled events of every timeline entry
+     * @param programs    program change at start of every entry or null
+     * @param tempoMap    tempo of the song
+     * @param masterTempo all tempo events are multiplied by that
+     */
+    SongRenderer (Timeline timeline, EventBuffer[] events, MidiMessage[] programs,
+                  TempoMap tempoMap, float masterTempo)
+    {
+        this.timeline = timeline;
+        this.events = events;
+        this.programs = programs;
+        this.tempoMap = tempoMap;
+        this.masterTempo = masterTempo;
+    }
+
+    /**
+     * Create program changes as the arrangement did before: only if the program changes
+     *
+     * @param timeline  the song
+     * @param programs  drum kit program (0-based) of every pattern
+     * @return program change of every timeline entry or null
+     * @throws InvalidMidiDataException if a message can't be built
+     */
+    static MidiMessage[] programChanges (Timeline timeline, int[] programs) throws InvalidMidiDataException
+    {
+        MidiMessage[] result = new MidiMessage[timeline.size()];
+        int lastprogram = -1;
+        for (int e = 0; e < timeline.size(); e++)
+        {
+            int prg = programs[timeline.getPattern(e)];
+            if (prg != lastprogram) // skip multiple prg change to same prg
+            {
+                result[e] = new ShortMessage(ShortMessage.PROGRAM_CHANGE, 9, prg, 0);
+                lastprogram = prg;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Stream the whole song without rendering it
+     * Memory depends only on the number of timeline entries
+     *
+     * @return cursor over all events
+     */
+    SongCursor cursor ()
+    {
+        ArrayList<SongCursor.Source> sources = new ArrayList<>();
+        sources.add(new TempoSource());
+        for (int e = 0; e < timeline.size(); e++)
+        {
+            addEntry(e, sources);
+        }
+        return new SongCursor(sources.toArray(new SongCursor.Source[0]));
+    }
+
+    /**
+     * Render the song on the common ForkJoinPool
+     * The timeline is cut into chunks of entries, every chunk is merged into
+     * an EventBuffer on its own, the chunks are then merged with the tempo events
+     * Chunks are in timeline order, so the events come like from cursor()
+     * Memory grows with the number of events, small songs are streamed
+     *
+     * @return cursor over all events
+     */
+    SongCursor render ()
+    {
+        int n = timeline.size();
+        int chunks = Math.min(n / CHUNK, ForkJoinPool.getCommonPoolParallelism() * 4);
+        if (chunks <= 1)
+        {
+            return cursor();
+        }
+        EventBuffer[] parts = new EventBuffer[chunks];
+        parallel(chunks, c -> parts[c] = renderEntries((int) ((long) n * c / chunks),
+                (int) ((long) n * (c + 1) / chunks)));
+        SongCursor.Source[] sources = new SongCursor.Source[chunks + 1];
+        sources[0] = new TempoSource();
+        for (int c = 0; c < chunks; c++)
+        {
+            sources[c + 1] = new BufferSource(parts[c]);
+        }
+        return new SongCursor(sources);
+    }
+
+    /**
+     * Merge some timeline entries, without tempo events
+     *
+     * @param from first entry
+     * @param to   behind last entry
+     * @return events of these entries, sorted by tick
+     */
+    private EventBuffer renderEntries (int from, int to)
+    {
+        ArrayList<SongCursor.Source> sources = new ArrayList<>();
+        for (int e = from; e < to; e++)
+        {
+            addEntry(e, sources);
+        }
+        SongCursor c = new SongCursor(sources.toArray(new SongCursor.Source[0]));
+        EventBuffer b = new EventBuffer(c.size());
+        while (c.next())
+        {
+            b.add(c.getTick(), c.getMessage());
+        }
+        return b;
+    }
+
+    /**
+     * Cut the song into sections: entries that start together make one section,
+     * so patterns that are played together sound like in the song
+     * Event ticks are converted to microseconds from the start of the section
+     * The sections are merged on the common ForkJoinPool
+     *
+     * @return the sections, by start
+     */
+    Section[] sections ()
+    {
+        int n = timeline.size();
+        Integer[] order = new Integer[n];
+        for (int e = 0; e < n; e++)
+        {
+            order[e] = e;
+        }
+        Arrays.sort(order, Comparator.comparingLong(timeline::getStart));  // stable: equal starts in timeline order
+        ArrayList<Integer> firsts = new ArrayList<>();     // first entry in order of every section
+        for (int from = 0; from < n; )
+        {
+            firsts.add(from);
+            long raw = timeline.getStart(order[from]);
+            do
+            {
+                from++;
+            }
+            while (from < n && timeline.getStart(order[from]) == raw);
+        }
+        firsts.add(n);
+        Section[] result = new Section[firsts.size() - 1];
+        parallel(result.length, s -> result[s] = renderSection(order, firsts.get(s), firsts.get(s + 1)));
+        return result;
+    }
+
+    /**
+     * Merge the entries of one section
+     *
+     * @param order entries by start
+     * @param from  first index into order
+     * @param to    behind last index into order
+     * @return the section
+     */
+    private Section renderSection (Integer[] order, int from, int to)
+    {
+        ArrayList<SongCursor.Source> sources = new ArrayList<>();
+        for (int e = from; e < to; e++)
+        {
+            addEntry(order[e], sources);
+        }
+        SongCursor c = new SongCursor(sources.toArray(new SongCursor.Source[0]));
+        double start = tempoMap.toMicros(tempoMap.toTick(timeline.getStart(order[from])), masterTempo);
+        EventBuffer b = new EventBuffer(c.size());
+        while (c.next())
+        {
+            b.add(Math.round(tempoMap.toMicros(c.getTick(), masterTempo) - start), c.getMessage());
+        }
+        return new Section(Math.round(start), b);
+    }
+
+    /**
+     * Run task(0) .. task(count - 1) on the common ForkJoinPool
+     *
+     * @param count number of tasks
+     * @param task  gets the task number
+     */
+    private static void parallel (int count, IntConsumer task)
+    {
+        if (count > 0)
+        {
+            ForkJoinPool.commonPool().invoke(new RangeTask(0, count, task));
+        }
+    }
+
+    /**
+     * Runs tasks from .. to-1, split in halves until one is left
+     */
+    private static class RangeTask extends RecursiveAction
+    {
+        private final int from;
+        private final int to;
+        private final IntConsumer task;
+
+        RangeTask (int from, int to, IntConsumer task)
+        {
+            this.from = from;
+            this.to = to;
+            this.task = task;
+        }
+
+        @Override
+        protected void compute ()
+        {
+            if (to - from == 1)
+            {
+                task.accept(from);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new RangeTask(from, mid, task), new RangeTask(mid, to, task));
+        }
+    }
+
+    /**
+     * Add the sources of one timeline entry: the program change, then the loops
+     * A pass is cut at every multiple of the pass length, each piece repeated
+     * for all loops is sorted, so the pieces are merged like any other source
+     * Pieces that reach further come first: at the same tick, the note offs
+     * of a pass are played before the next pass like in a PatternCursor
+     *
+     * @param entry   index of timeline entry
+     * @param sources the sources are appended to that
+     */
+    private void addEntry (int entry, List<SongCursor.Source> sources)
+    {
+        EventBuffer buffer = events[entry];
+        long offset = timeline.getStart(entry);
+        if (programs[entry] != null)
+        {
+            sources.add(new ProgramSource(programs[entry], offset));
+        }
+        long pass = buffer.getPassLength();
+        if (buffer.getLoops() <= 1 || pass <= 0)
+        {
+            sources.add(new EntrySource(buffer, 0, buffer.size(), offset));
+            return;
+        }
+        int last = buffer.size() == 0 ? 0 : (int) (buffer.getTick(buffer.size() - 1) / pass);
+        for (int piece = last; piece >= 0; piece--)
+        {
+            int from = buffer.indexOf(piece * pass);
+            int to = buffer.indexOf((piece + 1) * pass);
+            if (from < to)
+            {
+                sources.add(new EntrySource(buffer, from, to, offset));
+            }
+        }
+    }
+
+    /**
+     * Events of a rendered chunk, ticks are song ticks already
+     */
+    private static class BufferSource extends SongCursor.Source
+    {
+        private final EventBuffer buffer;
+
+        BufferSource (EventBuffer buffer)
+        {
+            this.buffer = buffer;
+        }
+
+        @Override
+        int size ()
+        {
+            return buffer.size();
+        }
+
+        @Override
+        long tick (int idx)
+        {
+            return buffer.getTick(idx);
+        }
+
+        @Override
+        MidiMessage message (int idx)
+        {
+            return buffer.getMessage(idx);
+        }
+    }
+
+    /**
+     * Tempo events of the song
+     */
+    private class TempoSource extends SongCursor.Source
+    {
+        @Override
+        int size ()
+        {
+            return tempoMap.size();
+        }
+
+        @Override
+        long tick (int idx)
+        {
+            return tempoMap.getTick(idx);
+        }
+
+        @Override
+        MidiMessage message (int idx)
+        {
+            try
+            {
+                return tempoMap.getMessage(idx, masterTempo);
+            }
+            catch (InvalidMidiDataException e)
+            {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * Program change at the start of a timeline entry
+     */
+    private class ProgramSource extends SongCursor.Source
+    {
+        private final MidiMessage program;
+        private final long tick;
+
+        ProgramSource (MidiMessage program, long offset)
+        {
+            this.program = program;
+            tick = tempoMap.new Mapper(offset).toTick(offset) + 1;
+        }
+
+        @Override
+        int size ()
+        {
+            return 1;
+        }
+
+        @Override
+        long tick (int idx)
+        {
+            return tick;
+        }
+
+        @Override
+        MidiMessage message (int idx)
+        {
+            return program;
+        }
+    }
+
+    /**
+     * Events from .. to-1 of a pattern in all loops, placed at the offset of a timeline entry
+     * Event idx is event from + idx % n of loop idx / n
+     * Raw ticks are converted into song ticks by the tempo map
+     */
+    private class EntrySource extends SongCursor.Source
+    {
+        private final EventBuffer buffer;
+        private final int from;
+        private final int n;
+        private final long pass;
+        private final int size;
+        private final long offset;
+        private final TempoMap.Mapper mapper;
+
+        EntrySource (EventBuffer buffer, int from, int to, long offset)
+        {
+            this.buffer = buffer;
+            this.from = from;
+            n = to - from;
+            pass = buffer.getPassLength();
+            size = n * Math.max(0, buffer.getLoops());
+            this.offset = offset;
+            mapper = tempoMap.new Mapper(offset);
+        }
+
+        @Override
+        int size ()
+        {
+            return size;
+        }
+
+        @Override
+        long tick (int idx)
+        {
+            long raw = idx / n * pass + buffer.getTick(from + idx % n);
+            return mapper.toTick(raw + offset) + 1;     // + 1 as ever
+        }
+
+        @Override
+        MidiMessage message (int idx)
+        {
+            return buffer.getMessage(from + idx % n);
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package arrangement;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MetaMessage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Tempo of a song
+ * Patterns are built in "raw" ticks: a step is speed ticks long, a raw tick
+ * lasts 1/960 quarter note at 120 BPM
+ * In the song every step is STEP ticks long and the speed of the patterns
+ * becomes a tempo: at every start tick the first pattern starting there sets
+ * the tempo, so it is on the beat grid and all others keep their real time
+ * Tempo changes and ramps of the arrangement ("@" items) are applied on top
+ * A master tempo factor only changes the tempo events, never the ticks
+ */
+public class TempoMap
+{
+    public static final int STEP = 240;                 // ticks per step, 1/16 note
+    public static final int RESOLUTION = 960;           // ticks per quarter note
+    public static final int DEFAULT_TEMPO = 500000;     // microseconds per quarter note, 120 BPM
+
+    // raw to song ticks: piecewise linear, segment k starts at rawStarts[k]
+    private final long[] rawStarts;
+    private final long[] songStarts;
+    private final int[] speeds;
+    // tempo events
+    private final long[] ticks;
+    private final double[] tempos;      // microseconds per quarter note
+    private final double[] micros;      // time of tempo event at master tempo 1
+
+    private TempoMap (long[] rawStarts, long[] songStarts, int[] speeds, long[] ticks, double[] tempos)
+    {
+        this.rawStarts = rawStarts;
+        this.songStarts = songStarts;
+        this.speeds = speeds;
+        this.ticks = ticks;
+        this.tempos = tempos;
+        micros = new double[ticks.length];
+        for (int s = 1; s < ticks.length; s++)
+        {
+            micros[s] = micros[s - 1] + (ticks[s] - ticks[s - 1]) * tempos[s - 1] / RESOLUTION;
+        }
+    }
+
+    /**
+     * Tempo of a pattern
+     *
+     * @param speed raw ticks per step
+     * @return microseconds per quarter note
+     */
+    public static double tempoOf (int speed)
+    {
+        return (double) DEFAULT_TEMPO * speed / STEP;
+    }
+
+    /**
+     * Build the tempo map of a song
+     *
+     * @param timeline the song in raw ticks
+     * @param speedOf  gives the speed of a pattern
+     * @return the tempo map
+     */
+    static TempoMap of (Timeline timeline, IntUnaryOperator speedOf)
+    {
+        // entries by start tick, equal starts in timeline order
+        int n = timeline.size();
+        Integer[] idx = new Integer[n];
+        for (int e = 0; e < n; e++)
+        {
+            idx[e] = e;
+        }
+        Arrays.sort(idx, (a, b) -> timeline.getStart(a) != timeline.getStart(b)
+                ? Long.compare(timeline.getStart(a), timeline.getStart(b)) : Integer.compare(a, b));
+        // segments: a new one where the first pattern of a start tick has another speed
+        long[] rawStarts = new long[n + 1];
+        long[] songStarts = new long[n + 1];
+        int[] speeds = new int[n + 1];
+        int segs = 1;
+        speeds[0] = STEP;   // 120 BPM until the first pattern
+        long lastStart = -1;
+        for (Integer e : idx)
+        {
+            long start = timeline.getStart(e);
+            if (start == lastStart)
+            {
+                continue;
+            }
+            lastStart = start;
+            int speed = speedOf.applyAsInt(timeline.getPattern(e));
+            if (speed == speeds[segs - 1])
+            {
+                continue;
+            }
+            long song = songStarts[segs - 1] + scale(start - rawStarts[segs - 1], speeds[segs - 1]);
+            if (start == rawStarts[segs - 1])
+            {
+                segs--;     // replaces a segment of zero length
+                song = songStarts[segs];
+            }
+            rawStarts[segs] = start;
+            songStarts[segs] = song;
+            speeds[segs] = speed;
+            segs++;
+        }
+        rawStarts = Arrays.copyOf(rawStarts, segs);
+        songStarts = Arrays.copyOf(songStarts, segs);
+        speeds = Arrays.copyOf(speeds, segs);
+        TempoMap base = new TempoMap(rawStarts, songStarts, speeds, new long[0], new double[0]);
+        return base.withTempoEvents(timeline);
+    }
+
+    /**
+     * Convert a length in raw ticks to song ticks, rounded
+     */
+    private static long scale (long raw, int speed)
+    {
+        return Math.floorDiv(2 * raw * STEP + speed, 2L * speed);
+    }
+
+    /**
+     * Create the tempo events from the segments and the tempo ranges of the timeline
+     *
+     * @param timeline the song in raw ticks
+     * @return complete tempo map
+     */
+    private TempoMap withTempoEvents (Timeline timeline)
+    {
+        // tempo ranges in song ticks
+        int r = timeline.getTempoCount();
+        long[] starts = new long[r];
+        long[] ends = new long[r];
+        Integer[] byStart = new Integer[r];
+        for (int s = 0; s < r; s++)
+        {
+            starts[s] = toTick(timeline.getTempoStart(s));
+            ends[s] = toTick(timeline.getTempoEnd(s));
+            byStart[s] = s;
+        }
+        Arrays.sort(byStart, (a, b) -> Long.compare(starts[a], starts[b]));
+        // all ticks where the tempo may change, tick 0 is always one of them
+        ArrayList<Long> points = new ArrayList<>();
+        for (long t : songStarts)
+        {
+            points.add(t);
+        }
+        for (int s = 0; s < r; s++)
+        {
+            points.add(starts[s]);
+            points.add(ends[s]);
+            if (timeline.getTempoFrom(s) != timeline.getTempoTo(s))
+            {
+                for (long t = starts[s] + STEP; t < ends[s]; t += STEP)
+                {
+                    points.add(t);
+                }
+            }
+        }
+        long[] pts = points.stream().mapToLong(Long::longValue).sorted().distinct().toArray();
+        // sweep: ranges that are active at a point
+        ArrayList<Integer> active = new ArrayList<>();
+        long[] evTicks = new long[pts.length];
+        double[] evTempos = new double[pts.length];
+        int count = 0;
+        int next = 0;
+        int seg = 0;
+        for (long t : pts)
+        {
+            while (next < r && starts[byStart[next]] <= t)
+            {
+                active.add(byStart[next++]);
+            }
+            active.removeIf(a -> ends[a] <= t);
+            while (seg + 1 < songStarts.length && songStarts[seg + 1] <= t)
+            {
+                seg++;
+            }
+            double factor = 1;
+            for (int a : active)
+            {
+                double pos = (double) (t - starts[a]) / (ends[a] - starts[a]);
+                factor *= (timeline.getTempoFrom(a) + pos * (timeline.getTempoTo(a) - timeline.getTempoFrom(a))) / 100;
+            }
+            double tempo = tempoOf(speeds[seg]) / factor;
+            if (count == 0 || Math.round(tempo) != Math.round(evTempos[count - 1]))
+            {
+                evTicks[count] = t;
+                evTempos[count] = tempo;
+                count++;
+            }
+        }
+        return new TempoMap(rawStarts, songStarts, speeds,
+                Arrays.copyOf(evTicks, count), Arrays.copyOf(evTempos, count));
+    }
+
+    /**
+     * Convert raw ticks into song ticks
+     *
+     * @param raw raw tick
+     * @return song tick
+     */
+    public long toTick (long raw)
+    {
+        int k = segment(raw);
+        return songStarts[k] + scale(raw - rawStarts[k], speeds[k]);
+    }
+
+    private int segment (long raw)
+    {
+        int k = Arrays.binarySearch(rawStarts, raw);
+        return k < 0 ? Math.max(-k - 2, 0) : k;
+    }
+
+    /**
+     * Converts raw ticks that never go back, faster than toTick
+     */
+    class Mapper
+    {
+        private int seg;
+
+        /**
+         * Constructor
+         *
+         * @param raw first raw tick that will be converted
+         */
+        Mapper (long raw)
+        {
+            seg = segment(raw);
+        }
+
+        long toTick (long raw)
+        {
+            while (seg + 1 < rawStarts.length && rawStarts[seg + 1] <= raw)
+            {
+                seg++;
+            }
+            return songStarts[seg] + scale(raw - rawStarts[seg], speeds[seg]);
+        }
+    }
+
+    /**
+     * Get number of tempo events, there is at least one at tick 0
+     *
+     * @return the number
+     */
+    public int size ()
+    {
+        return ticks.length;
+    }
+
+    public long getTick (int idx)
+    {
+        return ticks[idx];
+    }
+
+    /**
+     * Get tempo of an event
+     *
+     * @param idx index of tempo event
+     * @return microseconds per quarter note at master tempo 1
+     */
+    public double getTempo (int idx)
+    {
+        return tempos[idx];
+    }
+
+    /**
+     * Create the meta message of a tempo event
+     *
+     * @param idx         index of tempo event
+     * @param masterTempo all tempos are multiplied by that
+     * @return the message
+     * @throws InvalidMidiDataException never
+     */
+    public MetaMessage getMessage (int idx, float masterTempo) throws InvalidMidiDataException
+    {
+        return tempoMessage(tempos[idx] / masterTempo);
+    }
+
+    /**
+     * Create a tempo meta message
+     *
+     * @param tempo microseconds per quarter note
+     * @return the message
+     * @throws InvalidMidiDataException never
+     */
+    public static MetaMessage tempoMessage (double tempo) throws InvalidMidiDataException
+    {
+        int mpq = (int) Math.max(1, Math.min(0xffffff, Math.round(tempo)));
+        return new MetaMessage(0x51, new byte[]{(byte) (mpq >> 16), (byte) (mpq >> 8), (byte) mpq}, 3);
+    }
+
+    /**
+     * Get time of a song tick
+     *
+     * @param tick        song tick
+     * @param masterTempo all tempos are multiplied by that
+     * @return microseconds from the start
+     */
+    public double toMicros (long tick, float masterTempo)
+    {
+        int k = Arrays.binarySearch(ticks, tick);
+        if (k < 0)
+        {
+            k = -k - 2;
+        }
+        return (micros[k] + (tick - ticks[k]) * tempos[k] / RESOLUTION) / masterTempo;
+    }
+}
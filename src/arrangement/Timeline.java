@@ -0,0 +1,234 @@
+package arrangement;
+
+import java.util.Arrays;
+
+/**
+ * Compiled arrangement: which pattern starts at which tick
+ * Entries are in the order they appear in the arrangement,
+ * layered patterns share the same start tick
+ * A repeated part is kept once with its count and stride,
+ * entries of the repeats are computed when they are read
+ * Tempo changes are kept as ranges, see TempoMap
+ */
+public class Timeline
+{
+    static final int MAX_ENTRIES = 1 << 22;
+
+    private int size;                           // entries, repeats included
+    private int parts;
+    private int[] firsts = new int[16];         // index of the first entry of each part
+    private long[] starts = new long[16];       // start tick of each part
+    private int[] patterns = new int[16];       // pattern of a single entry
+    private Timeline[] repeated = new Timeline[16];   // or the timeline that is repeated
+    private long[] strides = new long[16];      // distance of the repeats
+    private long length;
+    private int tempoCount;
+    private long[] tempoRanges = new long[4];   // start and end tick of each tempo range
+    private int[] tempoPercents = new int[4];   // tempo at start and end in percent
+
+    /**
+     * Add one pattern
+     *
+     * @param pattern pattern number
+     * @param start   start tick
+     */
+    void add (int pattern, long start)
+    {
+        addPart(pattern, null, start, 1, 0);
+    }
+
+    /**
+     * Add another timeline several times, one after another
+     * It is not copied, so it must not change anymore
+     *
+     * @param t      the other timeline
+     * @param offset added to all start ticks of the first repeat
+     * @param count  number of repeats
+     * @param stride distance of the repeats in ticks
+     */
+    void addRepeat (Timeline t, long offset, int count, long stride)
+    {
+        if (t.size > 0 && count > 0)
+        {
+            addPart(-1, t, offset, t.size * (long) count, stride);
+        }
+        for (int c = 0; c < count; c++)
+        {
+            for (int s = 0; s < t.tempoCount; s++)
+            {
+                addTempo(t.tempoRanges[2 * s] + offset + c * stride, t.tempoRanges[2 * s + 1] + offset + c * stride,
+                        t.tempoPercents[2 * s], t.tempoPercents[2 * s + 1]);
+            }
+        }
+    }
+
+    private void addPart (int pattern, Timeline t, long start, long entries, long stride)
+    {
+        if (size + entries > MAX_ENTRIES)
+        {
+            throw new IllegalStateException("Arrangement too long");
+        }
+        if (parts == firsts.length)
+        {
+            firsts = Arrays.copyOf(firsts, parts * 2);
+            starts = Arrays.copyOf(starts, parts * 2);
+            patterns = Arrays.copyOf(patterns, parts * 2);
+            repeated = Arrays.copyOf(repeated, parts * 2);
+            strides = Arrays.copyOf(strides, parts * 2);
+        }
+        firsts[parts] = size;
+        starts[parts] = start;
+        patterns[parts] = pattern;
+        repeated[parts] = t;
+        strides[parts] = stride;
+        parts++;
+        size += (int) entries;
+    }
+
+    /**
+     * Add a tempo change, the tempo goes linearly from one value to the other
+     *
+     * @param start start tick
+     * @param end   end tick
+     * @param from  tempo at start in percent
+     * @param to    tempo at end in percent
+     */
+    void addTempo (long start, long end, int from, int to)
+    {
+        if (tempoCount * 2 == tempoRanges.length)
+        {
+            if (tempoCount >= MAX_ENTRIES)
+            {
+                throw new IllegalStateException("Arrangement too long");
+            }
+            tempoRanges = Arrays.copyOf(tempoRanges, tempoCount * 4);
+            tempoPercents = Arrays.copyOf(tempoPercents, tempoCount * 4);
+        }
+        tempoRanges[2 * tempoCount] = start;
+        tempoRanges[2 * tempoCount + 1] = end;
+        tempoPercents[2 * tempoCount] = from;
+        tempoPercents[2 * tempoCount + 1] = to;
+        tempoCount++;
+    }
+
+    /**
+     * Add all entries and tempo changes of another timeline
+     *
+     * @param t      the other timeline, it must not change anymore
+     * @param offset added to all start ticks
+     */
+    void addAll (Timeline t, long offset)
+    {
+        addRepeat(t, offset, 1, 0);
+    }
+
+    void setLength (long length)
+    {
+        this.length = length;
+    }
+
+    public int size ()
+    {
+        return size;
+    }
+
+    public int getPattern (int idx)
+    {
+        int p = part(idx);
+        Timeline t = repeated[p];
+        return t == null ? patterns[p] : t.getPattern((idx - firsts[p]) % t.size);
+    }
+
+    public long getStart (int idx)
+    {
+        int p = part(idx);
+        Timeline t = repeated[p];
+        if (t == null)
+        {
+            return starts[p];
+        }
+        int local = idx - firsts[p];
+        return starts[p] + local / t.size * strides[p] + t.getStart(local % t.size);
+    }
+
+    /**
+     * Find the part that holds an entry
+     *
+     * @param idx index of entry
+     * @return index of part
+     */
+    private int part (int idx)
+    {
+        if (idx < 0 || idx >= size)
+        {
+            throw new IndexOutOfBoundsException("Entry " + idx);
+        }
+        int lo = 0;
+        int hi = parts - 1;
+        while (lo < hi)
+        {
+            int mid = (lo + hi + 1) >>> 1;
+            if (firsts[mid] <= idx)
+            {
+                lo = mid;
+            }
+            else
+            {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Get number of tempo changes
+     *
+     * @return the number
+     */
+    public int getTempoCount ()
+    {
+        return tempoCount;
+    }
+
+    public long getTempoStart (int idx)
+    {
+        return tempoRanges[2 * idx];
+    }
+
+    public long getTempoEnd (int idx)
+    {
+        return tempoRanges[2 * idx + 1];
+    }
+
+    /**
+     * Get tempo at the start of a tempo change
+     *
+     * @param idx index of tempo change
+     * @return tempo in percent of the pattern tempo
+     */
+    public int getTempoFrom (int idx)
+    {
+        return tempoPercents[2 * idx];
+    }
+
+    /**
+     * Get tempo at the end of a tempo change
+     *
+     * @param idx index of tempo change
+     * @return tempo in percent of the pattern tempo
+     */
+    public int getTempoTo (int idx)
+    {
+        return tempoPercents[2 * idx + 1];
+    }
+
+    /**
+     * Get length of the whole song
+     *
+     * @return ticks from start to end of the last pattern
+     */
+    public long getLength ()
+    {
+        return length;
+    }
+}
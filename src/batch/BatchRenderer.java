@@ -0,0 +1,467 @@
+package batch;
+
+import arrangement.Arrangement;
+import arrangement.ArrangementCompiler;
+import arrangement.TempoMap;
+import arrangement.Timeline;
+import generator.PatternGenerator;
+import generator.Template;
+import pattern.ObjectReader;
+import pattern.ObjectWriter;
+import pattern.PatternModel;
+import pattern.PatternSnapshot;
+import playback.OfflineRenderer;
+import playback.RenderCache;
+import playback.StemRenderer;
+import smf.SmfWriter;
+
+import javax.sound.midi.InvalidMidiDataException;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+/**
+ * Renders all projects (*.dproj) and patterns (*.drmp) of a directory and its
+ * subdirectories into MIDI files, and WAV files if wanted, without any GUI
+ * Files are rendered in parallel, each one is loaded, compiled and written
+ * on its own, so a file that can't be read only fails itself
+ * A project uses its own arrangement, a single pattern the arrangement "0",
+ * unless an arrangement is given on the command line
+ * With -gen, variations of a style are generated into the directory and rendered
+ */
+public class BatchRenderer
+{
+    private String arrangement;     // for all files or null
+    private float masterTempo = 1;
+    private boolean notesOnly;
+    private boolean wav;
+    private boolean draft;
+    private boolean stems;
+    private RenderCache cache;      // null: render every song in one piece
+    private Path inDir;
+    private Path outDir;            // null: next to the source file
+    private Template template;      // generate variations of that, or null
+    private PatternGenerator generator;
+    private long seed;
+    private int steps = 16;
+
+    /**
+     * Result of one file
+     */
+    private static class Result
+    {
+        final Path file;
+        long loadNanos;
+        long midiNanos;
+        long wavNanos;
+        long audioMicros;
+        double realtime;
+        String sections = "";
+        String error;
+
+        Result (Path file)
+        {
+            this.file = file;
+        }
+
+        @Override
+        public String toString ()
+        {
+            if (error != null)
+            {
+                return file + ": FAILED " + error;
+            }
+            String s = file + ": load " + loadNanos / 1000000 + " ms, MIDI " + midiNanos / 1000000 + " ms";
+            if (audioMicros > 0)
+            {
+                s += String.format(", WAV %d ms (%d s audio, %.0fx real time%s)",
+                        wavNanos / 1000000, audioMicros / 1000000, realtime, sections);
+            }
+            return s;
+        }
+    }
+
+    /**
+     * A loaded file
+     */
+    private static class Song
+    {
+        String text;
+        PatternSnapshot[] patterns;
+    }
+
+    /**
+     * Load a project or a pattern
+     *
+     * @param file the file
+     * @return the arrangement text and the patterns
+     * @throws IOException if the file can't be read or a pattern in it is broken
+     */
+    private static Song load (Path file) throws IOException
+    {
+        Song song = new Song();
+        ObjectReader r = new ObjectReader(file.toString());
+        try
+        {
+            ArrayList<PatternSnapshot> patterns = new ArrayList<>();
+            if (file.toString().endsWith(".drmp"))
+            {
+                song.text = "0";
+            }
+            else
+            {
+                Object text = r.readObject();
+                if (!(text instanceof String))
+                {
+                    throw new IOException("Not a project");
+                }
+                song.text = (String) text;
+            }
+            for (; ; )
+            {
+                PatternModel m = new PatternModel();
+                if (!m.readNext(r))
+                {
+                    break;
+                }
+                patterns.add(m.snapshot());
+            }
+            if (patterns.isEmpty())
+            {
+                throw new IOException("No patterns");
+            }
+            song.patterns = patterns.toArray(new PatternSnapshot[0]);
+            return song;
+        }
+        catch (EOFException e)
+        {
+            throw new IOException("Not a project", e);
+        }
+        catch (ClassNotFoundException e)
+        {
+            throw new IOException("Not a project: " + e, e);
+        }
+        finally
+        {
+            r.close();
+        }
+    }
+
+    /**
+     * Generate a variation, save it as pattern file and render it
+     *
+     * @param index number of the variation
+     * @return timing or error
+     */
+    private Result generate (long index)
+    {
+        String name = String.format("%s_%d_%d.drmp", template.getName().replace(' ', '_'), seed, index);
+        Path file = inDir.resolve(name);
+        return render(file, () ->
+        {
+            Song song = new Song();
+            song.text = "0";
+            song.patterns = new PatternSnapshot[]{generator.variation(template, index, steps)};
+            ObjectWriter w = new ObjectWriter(file.toString());
+            song.patterns[0].write(w);
+            w.close();
+            return song;
+        });
+    }
+
+    /**
+     * Render one file
+     *
+     * @param file   the file
+     * @param source loads the song
+     * @return timing or error
+     */
+    private Result render (Path file, Callable<Song> source)
+    {
+        Result res = new Result(file);
+        try
+        {
+            long t0 = System.nanoTime();
+            Song song = source.call();
+            Arrangement ar = Arrangement.parse(arrangement != null ? arrangement : song.text);
+            ArrangementCompiler ac = new ArrangementCompiler(song.patterns);
+            Timeline timeline = ar.toTimeline(ac::getLength);
+            long t1 = System.nanoTime();
+            res.loadNanos = t1 - t0;
+            SmfWriter.write(ac.render(timeline, masterTempo, notesOnly), TempoMap.RESOLUTION, output(file, ".mid"));
+            long t2 = System.nanoTime();
+            res.midiNanos = t2 - t1;
+            if (stems)
+            {
+                StemRenderer sr = new StemRenderer(() ->
+                {
+                    try
+                    {
+                        return ac.cursor(timeline, masterTempo, notesOnly);
+                    }
+                    catch (InvalidMidiDataException e)
+                    {
+                        throw new IllegalStateException(e);
+                    }
+                });
+                sr.setDraft(draft);
+                sr.render(output(file, ".wav"));
+                res.audioMicros = sr.getAudioMicros();
+                res.realtime = res.audioMicros * 1000.0 / sr.getRenderNanos();
+                res.wavNanos = System.nanoTime() - t2;
+            }
+            else if (wav && cache != null)
+            {
+                RenderCache.Result r = cache.render(ac.sections(timeline, masterTempo, notesOnly),
+                        output(file, ".wav"));
+                res.audioMicros = r.getAudioMicros();
+                res.realtime = res.audioMicros * 1000.0 / r.getNanos();
+                res.sections = ", " + r.getRendered() + " of " + r.getSections() + " sections rendered";
+                res.wavNanos = System.nanoTime() - t2;
+            }
+            else if (wav)
+            {
+                OfflineRenderer or = new OfflineRenderer();
+                or.setDraft(draft);
+                res.audioMicros = or.render(ac.cursor(timeline, masterTempo, notesOnly), output(file, ".wav"));
+                res.realtime = or.getRealtimeFactor();
+                res.wavNanos = System.nanoTime() - t2;
+            }
+        }
+        catch (ParseException e)
+        {
+            res.error = "Arrangement: " + e.getMessage() + " at " + e.getErrorOffset();
+        }
+        catch (Exception e)
+        {
+            res.error = e.toString();
+        }
+        System.out.println(res);
+        return res;
+    }
+
+    /**
+     * Name of an output file
+     *
+     * @param file      the source file
+     * @param extension new extension
+     * @return file in the output directory or next to the source
+     * @throws IOException if the directory can't be created
+     */
+    private File output (Path file, String extension) throws IOException
+    {
+        String name = file.getFileName().toString();
+        name = name.substring(0, name.lastIndexOf('.')) + extension;
+        if (outDir == null)
+        {
+            return file.resolveSibling(name).toFile();
+        }
+        Path dir = outDir.resolve(inDir.relativize(file.getParent()));
+        Files.createDirectories(dir);
+        return dir.resolve(name).toFile();
+    }
+
+    /**
+     * Find all files to render
+     *
+     * @return the files, sorted
+     * @throws IOException if the directory can't be read
+     */
+    private List<Path> scan () throws IOException
+    {
+        try (Stream<Path> s = Files.walk(inDir))
+        {
+            return s.filter(f -> f.toString().endsWith(".dproj") || f.toString().endsWith(".drmp"))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static void usage ()
+    {
+        System.out.println("Usage: BatchRenderer [options] directory");
+        System.out.println("  -gen style  generate variations of a style into the directory: "
+                + Arrays.toString(Template.TEMPLATES));
+        System.out.println("  -count n    number of variations, default 100");
+        System.out.println("  -seed n     seed of the variations, default random");
+        System.out.println("  -steps n    steps of the variations, default 16");
+        System.out.println("  -a text     arrangement for all files, e.g. \"0, 1x4, (2+3)x2 @150\"");
+        System.out.println("  -t percent  master tempo, 10 to 500, default 100");
+        System.out.println("  -j threads  files rendered at once, default number of cores");
+        System.out.println("  -o dir      output directory, default next to the source files");
+        System.out.println("  -n          notes only");
+        System.out.println("  -wav        render WAV files too");
+        System.out.println("  -stems      render one WAV file per instrument");
+        System.out.println("  -draft      fast WAV without reverb and chorus");
+        System.out.println("  -cache dir  render WAV files from cached sections");
+        System.out.println("  -budget mb  size of the cache, default 1024");
+    }
+
+    /**
+     * Command line: BatchRenderer [options] directory
+     * Prints one line per file and a summary, exits with 1 if a file failed
+     *
+     * @param args arguments, see usage()
+     * @throws Exception if smth. failed
+     */
+    public static void main (String[] args) throws Exception
+    {
+        BatchRenderer br = new BatchRenderer();
+        int threads = Runtime.getRuntime().availableProcessors();
+        File cacheDir = null;
+        long budget = 1024;
+        long count = 100;
+        Long seed = null;
+        try
+        {
+            for (int s = 0; s < args.length; s++)
+            {
+                switch (args[s])
+                {
+                    case "-a":
+                        br.arrangement = args[++s];
+                        break;
+                    case "-t":
+                        br.masterTempo = Math.max(10, Math.min(500, Integer.parseInt(args[++s]))) / 100f;
+                        break;
+                    case "-j":
+                        threads = Math.max(1, Integer.parseInt(args[++s]));
+                        break;
+                    case "-o":
+                        br.outDir = Paths.get(args[++s]);
+                        break;
+                    case "-n":
+                        br.notesOnly = true;
+                        break;
+                    case "-wav":
+                        br.wav = true;
+                        break;
+                    case "-stems":
+                        br.stems = true;
+                        break;
+                    case "-draft":
+                        br.draft = true;
+                        break;
+                    case "-cache":
+                        cacheDir = new File(args[++s]);
+                        break;
+                    case "-budget":
+                        budget = Long.parseLong(args[++s]);
+                        break;
+                    case "-gen":
+                        br.template = Template.byName(args[++s]);
+                        if (br.template == null)
+                        {
+                            throw new IllegalArgumentException(args[s]);
+                        }
+                        break;
+                    case "-count":
+                        count = Math.max(1, Long.parseLong(args[++s]));
+                        break;
+                    case "-seed":
+                        seed = Long.parseLong(args[++s]);
+                        break;
+                    case "-steps":
+                        br.steps = Math.max(1, Math.min(PatternModel.MAX_STEPS, Integer.parseInt(args[++s])));
+                        break;
+                    default:
+                        if (args[s].startsWith("-") || br.inDir != null)
+                        {
+                            throw new IllegalArgumentException(args[s]);
+                        }
+                        br.inDir = Paths.get(args[s]);
+                }
+            }
+        }
+        catch (RuntimeException e)
+        {
+            System.out.println("Wrong argument: " + e.getMessage());
+            usage();
+            System.exit(2);
+        }
+        if (br.inDir == null)
+        {
+            usage();
+            System.exit(2);
+        }
+        if (br.arrangement != null)
+        {
+            try
+            {
+                Arrangement.parse(br.arrangement);  // fail once, not for every file
+            }
+            catch (ParseException e)
+            {
+                System.out.println("Arrangement: " + e.getMessage() + " at " + e.getErrorOffset());
+                System.exit(2);
+            }
+        }
+        if (cacheDir != null)
+        {
+            br.cache = new RenderCache(cacheDir, budget << 20);
+            br.cache.setDraft(br.draft);
+        }
+        if (br.template != null)
+        {
+            br.seed = seed != null ? seed : System.nanoTime();
+            br.generator = new PatternGenerator(br.seed);
+            Files.createDirectories(br.inDir);
+            System.out.println(br.template + ", seed " + br.seed);
+        }
+        long t0 = System.nanoTime();
+        List<Path> files = br.template != null ? null : br.scan();
+        long n = br.template != null ? count : files.size();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        List<Result> results;
+        try
+        {
+            results = pool.submit(() -> br.template != null
+                    ? LongStream.range(0, n).parallel()
+                    .mapToObj(br::generate)
+                    .collect(Collectors.toList())
+                    : files.parallelStream()
+                    .map(f -> br.render(f, () -> load(f)))
+                    .collect(Collectors.toList())).get();
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+        long wall = System.nanoTime() - t0;
+        long busy = 0;
+        long audio = 0;
+        int failed = 0;
+        for (Result r : results)
+        {
+            busy += r.loadNanos + r.midiNanos + r.wavNanos;
+            audio += r.audioMicros;
+            if (r.error != null)
+            {
+                failed++;
+            }
+        }
+        System.out.println(n + " files, " + failed + " failed, " + wall / 1000000 + " ms on "
+                + threads + " threads, " + busy / 1000000 + " ms of work");
+        if (audio > 0)
+        {
+            System.out.printf("%d s audio, %.0fx real time%n", audio / 1000000, audio * 1000.0 / wall);
+        }
+        if (failed > 0)
+        {
+            System.exit(1);
+        }
+    }
+}
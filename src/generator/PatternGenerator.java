@@ -0,0 +1,154 @@
+package generator;
+
+import pattern.PatternModel;
+import pattern.PatternSnapshot;
+import pattern.StepGrid;
+
+import java.util.SplittableRandom;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+/**
+ * Creates drum patterns from Templates
+ * All random numbers come from a seed, so the same seed gives the same patterns
+ * Variation n of a seed does not depend on other variations,
+ * so batches can be generated in parallel
+ */
+public class PatternGenerator
+{
+    private final long seed;
+    private final SplittableRandom random;  // for generate(), advances with every call
+    private double densityScale = 1.0;
+    private int velocityJitter = 0;
+
+    /**
+     * Constructor
+     *
+     * @param seed start value of the random numbers
+     */
+    public PatternGenerator (long seed)
+    {
+        this.seed = seed;
+        random = new SplittableRandom(seed);
+    }
+
+    /**
+     * Get the seed, a generator with the same seed makes the same patterns
+     *
+     * @return start value of the random numbers
+     */
+    public long getSeed ()
+    {
+        return seed;
+    }
+
+    /**
+     * Make patterns busier or sparser
+     * Steps a template always or never plays are not changed
+     *
+     * @param scale factor for all probabilities, 1 keeps the template
+     */
+    public void setDensityScale (double scale)
+    {
+        densityScale = Math.max(0, scale);
+    }
+
+    /**
+     * Let velocities vary randomly
+     *
+     * @param jitter maximum change of a velocity, 0 for none
+     */
+    public void setVelocityJitter (int jitter)
+    {
+        velocityJitter = Math.max(0, jitter);
+    }
+
+    /**
+     * Fill a grid from a template
+     * Rows get the notes of the voices, rows without a voice are cleared
+     *
+     * @param grid  the grid
+     * @param t     the template
+     * @param steps number of steps to fill
+     * @param rnd   random numbers
+     */
+    public void fill (StepGrid grid, Template t, int steps, SplittableRandom rnd)
+    {
+        for (int row = 0; row < grid.getRows(); row++)
+        {
+            grid.clearRow(row);
+            if (row >= t.getVoiceCount())
+            {
+                continue;
+            }
+            Voice v = t.getVoice(row);
+            grid.setInstrument(row, v.getNote());
+            for (int step = 0; step < steps; step++)
+            {
+                double p = v.getDensity(step);
+                if (p <= 0 || p < 1 && rnd.nextDouble() >= p * densityScale)
+                {
+                    continue;
+                }
+                int velocity = v.getAccent(step);
+                if (velocityJitter > 0)
+                {
+                    velocity += rnd.nextInt(2 * velocityJitter + 1) - velocityJitter;
+                }
+                grid.set(row, step, v.getNote(), Math.max(1, Math.min(127, velocity)));
+            }
+        }
+    }
+
+    /**
+     * Replace the pads of a model by a new pattern
+     * This is one step in the undo journal
+     *
+     * @param model the model
+     * @param t     the template
+     */
+    public void generate (PatternModel model, Template t)
+    {
+        model.beginEdit();
+        if (model.getLines() < t.getVoiceCount())
+        {
+            model.setLines(t.getVoiceCount());
+        }
+        model.setSpeed(t.getSpeed());
+        fill(model.editGrid(), t, model.getSteps(), random.split());
+        model.gridChanged();
+        model.endEdit();
+    }
+
+    /**
+     * Create one variation of a template
+     * The result only depends on seed, template, index and settings
+     *
+     * @param t     the template
+     * @param index number of the variation
+     * @param steps number of steps
+     * @return the pattern
+     */
+    public PatternSnapshot variation (Template t, long index, int steps)
+    {
+        StepGrid grid = new StepGrid(t.getVoiceCount(), steps);
+        fill(grid, t, steps, new SplittableRandom(seed ^ index * 0x9E3779B97F4A7C15L));
+        return PatternSnapshot.of(grid, steps, t.getSpeed());
+    }
+
+    /**
+     * Create many variations of a template
+     * The stream is parallel, use forEachOrdered() if the order matters
+     *
+     * @param t     the template
+     * @param first number of the first variation
+     * @param count number of variations
+     * @param steps number of steps
+     * @return the patterns
+     */
+    public Stream<PatternSnapshot> variations (Template t, long first, long count, int steps)
+    {
+        return LongStream.range(first, first + count).parallel()
+                .mapToObj(i -> variation(t, i, steps));
+    }
+}
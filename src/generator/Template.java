@@ -0,0 +1,113 @@
+package generator;
+
+/**
+ * A style of pattern: one Voice per drum line
+ * Notes are General MIDI percussion keys
+ */
+public final class Template
+{
+    private static final int KICK = 36;
+    private static final int SNARE = 38;
+    private static final int CLAP = 39;
+    private static final int CLOSED_HIHAT = 42;
+    private static final int OPEN_HIHAT = 46;
+    private static final int RIDE = 51;
+    private static final int RIM = 37;
+    private static final int CONGA = 63;
+    private static final int SHAKER = 70;
+
+    public static final Template ROCK = new Template("Rock", 120,
+            new Voice(KICK, new double[]{1, 0, 0, 0, 0, 0, 0, 0.3, 1, 0, 0.5, 0, 0, 0, 0, 0}, 120),
+            new Voice(SNARE, new double[]{0, 0, 0, 0, 1, 0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0.2}, 115),
+            new Voice(CLOSED_HIHAT, new double[]{1, 0, 1, 0}, 100, 60, 80, 60),
+            Voice.random(OPEN_HIHAT, 0.03, 80));
+
+    public static final Template HOUSE = new Template("House", 100,
+            Voice.euclid(KICK, 4, 16, 0, 125),
+            new Voice(CLAP, new double[]{0, 0, 0, 0, 1, 0, 0, 0}, 110),
+            new Voice(OPEN_HIHAT, new double[]{0, 0, 1, 0}, 90),
+            new Voice(CLOSED_HIHAT, new double[]{0.9, 0.4, 0, 0.6}, 70, 45, 0, 55),
+            Voice.random(SHAKER, 0.25, 50, 35));
+
+    public static final Template HIP_HOP = new Template("Hip Hop", 160,
+            new Voice(KICK, new double[]{1, 0, 0, 0, 0, 0, 0, 0.5, 0, 0.8, 1, 0, 0, 0, 0.3, 0}, 120),
+            new Voice(SNARE, new double[]{0, 0, 0, 0, 1, 0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0}, 118),
+            new Voice(CLOSED_HIHAT, new double[]{1, 0.2, 1, 0.2}, 90, 40, 70, 40),
+            Voice.random(RIM, 0.06, 60));
+
+    public static final Template BREAKBEAT = new Template("Breakbeat", 110,
+            new Voice(KICK, new double[]{1, 0, 0.3, 0, 0, 0, 0, 0, 0, 0, 1, 0.4, 0, 0, 0, 0}, 120),
+            new Voice(SNARE, new double[]{0, 0, 0, 0, 1, 0, 0, 0.3, 0, 0.5, 0, 0, 1, 0, 0.2, 0.4},
+                    115, 50, 60, 50),
+            new Voice(RIDE, new double[]{1, 0.5}, 90, 55));
+
+    public static final Template TRESILLO = new Template("Tresillo", 130,
+            Voice.euclid(KICK, 3, 8, 0, 115),
+            Voice.euclid(RIM, 5, 8, 1, 90, 60),
+            Voice.euclid(CONGA, 7, 16, 2, 80, 55),
+            Voice.euclid(SHAKER, 16, 16, 0, 60, 30, 45, 30));
+
+    public static final Template[] TEMPLATES = {ROCK, HOUSE, HIP_HOP, BREAKBEAT, TRESILLO};
+
+    private final String name;
+    private final int speed;
+    private final Voice[] voices;
+
+    /**
+     * Constructor
+     *
+     * @param name   Name of the style
+     * @param speed  Speed value for the PatternModel
+     * @param voices one voice per drum line
+     */
+    public Template (String name, int speed, Voice... voices)
+    {
+        this.name = name;
+        this.speed = speed;
+        this.voices = voices.clone();
+    }
+
+    /**
+     * Find a template by name
+     *
+     * @param name Name of the style, case is ignored
+     * @return the template or null
+     */
+    public static Template byName (String name)
+    {
+        for (Template t : TEMPLATES)
+        {
+            if (t.name.equalsIgnoreCase(name))
+            {
+                return t;
+            }
+        }
+        return null;
+    }
+
+    public String getName ()
+    {
+        return name;
+    }
+
+    public int getSpeed ()
+    {
+        return speed;
+    }
+
+    public int getVoiceCount ()
+    {
+        return voices.length;
+    }
+
+    public Voice getVoice (int idx)
+    {
+        return voices[idx];
+    }
+
+    @Override
+    public String toString ()
+    {
+        return name;
+    }
+}
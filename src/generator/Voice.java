@@ -0,0 +1,107 @@
+package generator;
+
+/**
+ * One drum line of a Template
+ * Holds a probability and a velocity for every step of a cycle,
+ * the cycle is repeated over the whole pattern
+ */
+public final class Voice
+{
+    private final int note;
+    private final double[] density;     // probability of a hit per step
+    private final int[] accent;         // velocity per step
+
+    /**
+     * Constructor
+     *
+     * @param note    MIDI note number
+     * @param density probability of a hit for every step of the cycle, 0 ... 1
+     * @param accent  velocity for every step, repeated if shorter than density
+     */
+    public Voice (int note, double[] density, int... accent)
+    {
+        if (density.length == 0 || accent.length == 0)
+        {
+            throw new IllegalArgumentException("empty voice");
+        }
+        this.note = note;
+        this.density = density.clone();
+        this.accent = accent.clone();
+    }
+
+    /**
+     * Create a voice that plays an Euclidean rhythm:
+     * pulses hits spread as evenly as possible over steps
+     *
+     * @param note     MIDI note number
+     * @param pulses   number of hits
+     * @param steps    length of the cycle
+     * @param rotation steps to rotate the rhythm to the right
+     * @param accent   velocity for every step
+     * @return the voice
+     */
+    public static Voice euclid (int note, int pulses, int steps, int rotation, int... accent)
+    {
+        return new Voice(note, euclid(pulses, steps, rotation), accent);
+    }
+
+    /**
+     * Compute an Euclidean rhythm (Bresenham form of Bjorklund's algorithm)
+     *
+     * @param pulses   number of hits
+     * @param steps    length of the cycle
+     * @param rotation steps to rotate the rhythm to the right
+     * @return 1 for a hit, 0 for a rest
+     */
+    public static double[] euclid (int pulses, int steps, int rotation)
+    {
+        double[] d = new double[steps];
+        pulses = Math.max(0, Math.min(pulses, steps));
+        for (int s = 0; s < steps; s++)
+        {
+            int i = Math.floorMod(s - rotation, steps);
+            d[s] = i * pulses % steps < pulses ? 1 : 0;
+        }
+        return d;
+    }
+
+    /**
+     * Create a voice that plays every step with the same probability
+     *
+     * @param note        MIDI note number
+     * @param probability probability of a hit, 0 ... 1
+     * @param accent      velocity for every step
+     * @return the voice
+     */
+    public static Voice random (int note, double probability, int... accent)
+    {
+        return new Voice(note, new double[]{probability}, accent);
+    }
+
+    public int getNote ()
+    {
+        return note;
+    }
+
+    /**
+     * Get probability of a hit
+     *
+     * @param step step number, may be larger than the cycle
+     * @return probability, 0 ... 1
+     */
+    public double getDensity (int step)
+    {
+        return density[step % density.length];
+    }
+
+    /**
+     * Get velocity of a hit
+     *
+     * @param step step number, may be larger than the cycle
+     * @return velocity
+     */
+    public int getAccent (int step)
+    {
+        return accent[step % accent.length];
+    }
+}
@@ -0,0 +1,282 @@
+package pattern;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.ShortMessage;
+import java.util.Arrays;
+
+/**
+ * Time-sorted MIDI events of one pass through a pattern
+ * Kept up to date pad by pad, so nothing has to be rebuilt before playing
+ * Events are sorted by step, note on and note off ticks are computed
+ * from speed and note length by a PatternCursor
+ * The messages are shared by all emitted events and must not be changed
+ */
+public class CompiledPattern
+{
+    // One message for every note and velocity, shared by all patterns
+    private static final ShortMessage[] NOTE_ON_MESSAGES = new ShortMessage[128 * 128];
+    private static final ShortMessage[] NOTE_OFF_MESSAGES = new ShortMessage[128];
+
+    static
+    {
+        try
+        {
+            for (int note = 0; note < 128; note++)
+            {
+                for (int velocity = 0; velocity < 128; velocity++)
+                {
+                    NOTE_ON_MESSAGES[note << 7 | velocity] =
+                            new ShortMessage(ShortMessage.NOTE_ON, 9, note, velocity);
+                }
+                NOTE_OFF_MESSAGES[note] = new ShortMessage(ShortMessage.NOTE_OFF, 9, note, 0);
+            }
+        }
+        catch (InvalidMidiDataException e)
+        {
+            System.out.println(e);
+        }
+    }
+
+    private int size;
+    private long[] keys = new long[16];     // key on IDs, ascending
+    private ShortMessage[] noteOn = new ShortMessage[16];
+    private ShortMessage[] noteOff = new ShortMessage[16];
+
+    /**
+     * Constructor: no events
+     */
+    public CompiledPattern ()
+    {
+    }
+
+    /**
+     * Copy constructor
+     * The messages are shared, they are never changed
+     *
+     * @param src the source
+     */
+    public CompiledPattern (CompiledPattern src)
+    {
+        size = src.size;
+        keys = src.keys.clone();
+        noteOn = src.noteOn.clone();
+        noteOff = src.noteOff.clone();
+    }
+
+    /**
+     * Number of pads
+     *
+     * @return number of note on events per pass
+     */
+    public int size ()
+    {
+        return size;
+    }
+
+    private static long key (int row, int step)
+    {
+        return EventIdPair.keyOnId(step, row);
+    }
+
+    /**
+     * Get step of an event
+     *
+     * @param idx index of event
+     * @return step number
+     */
+    public int getStep (int idx)
+    {
+        return EventIdPair.getColumnNumber(keys[idx]);
+    }
+
+    /**
+     * Get row of an event
+     *
+     * @param idx index of event
+     * @return row number
+     */
+    public int getRow (int idx)
+    {
+        return EventIdPair.getRowNumber(keys[idx]);
+    }
+
+    public ShortMessage getNoteOn (int idx)
+    {
+        return noteOn[idx];
+    }
+
+    public ShortMessage getNoteOff (int idx)
+    {
+        return noteOff[idx];
+    }
+
+    /**
+     * Add or replace the events of one pad
+     *
+     * @param row      Row number
+     * @param step     Column number
+     * @param note     MIDI note number
+     * @param velocity Note on velocity
+     */
+    public void put (int row, int step, int note, int velocity)
+    {
+        long k = key(row, step);
+        int idx = Arrays.binarySearch(keys, 0, size, k);
+        if (idx < 0)
+        {
+            idx = -idx - 1;
+            if (size == keys.length)
+            {
+                keys = Arrays.copyOf(keys, size * 2);
+                noteOn = Arrays.copyOf(noteOn, size * 2);
+                noteOff = Arrays.copyOf(noteOff, size * 2);
+            }
+            System.arraycopy(keys, idx, keys, idx + 1, size - idx);
+            System.arraycopy(noteOn, idx, noteOn, idx + 1, size - idx);
+            System.arraycopy(noteOff, idx, noteOff, idx + 1, size - idx);
+            size++;
+            keys[idx] = k;
+        }
+        noteOn[idx] = NOTE_ON_MESSAGES[(note & 127) << 7 | (velocity & 127)];
+        noteOff[idx] = NOTE_OFF_MESSAGES[note & 127];
+    }
+
+    /**
+     * Remove the events of one pad
+     *
+     * @param row  Row number
+     * @param step Column number
+     */
+    public void remove (int row, int step)
+    {
+        int idx = Arrays.binarySearch(keys, 0, size, key(row, step));
+        if (idx >= 0)
+        {
+            removeAt(idx);
+        }
+    }
+
+    private void removeAt (int idx)
+    {
+        size--;
+        System.arraycopy(keys, idx + 1, keys, idx, size - idx);
+        System.arraycopy(noteOn, idx + 1, noteOn, idx, size - idx);
+        System.arraycopy(noteOff, idx + 1, noteOff, idx, size - idx);
+        noteOn[size] = null;
+        noteOff[size] = null;
+    }
+
+    /**
+     * Remove the events of all pads in a row
+     *
+     * @param row Row number
+     */
+    public void removeRow (int row)
+    {
+        int n = 0;
+        for (int s = 0; s < size; s++)
+        {
+            if (EventIdPair.getRowNumber(keys[s]) != row)
+            {
+                keys[n] = keys[s];
+                noteOn[n] = noteOn[s];
+                noteOff[n] = noteOff[s];
+                n++;
+            }
+        }
+        Arrays.fill(noteOn, n, size, null);
+        Arrays.fill(noteOff, n, size, null);
+        size = n;
+    }
+
+    /**
+     * Compile all pads of a grid, replacing everything
+     *
+     * @param grid the grid
+     */
+    public void rebuild (StepGrid grid)
+    {
+        size = grid.countHits();
+        keys = new long[Math.max(16, size)];
+        noteOn = new ShortMessage[keys.length];
+        noteOff = new ShortMessage[keys.length];
+        int n = 0;
+        for (int row = 0; row < grid.getRows(); row++)
+        {
+            for (int w = 0; w < grid.getWordsPerRow(); w++)
+            {
+                long bits = grid.getWord(row, w);
+                while (bits != 0)
+                {
+                    keys[n++] = key(row, w << 6 | Long.numberOfTrailingZeros(bits));
+                    bits &= bits - 1;
+                }
+            }
+        }
+        Arrays.sort(keys, 0, size);
+        for (int s = 0; s < size; s++)
+        {
+            int row = getRow(s);
+            int step = getStep(s);
+            int note = grid.getNote(row, step);
+            noteOn[s] = NOTE_ON_MESSAGES[(note & 127) << 7 | (grid.getVelocity(row, step) & 127)];
+            noteOff[s] = NOTE_OFF_MESSAGES[note & 127];
+        }
+    }
+
+    /**
+     * Compute a hash over all events
+     *
+     * @return the hash, equal for patterns with equal events
+     */
+    public long contentHash ()
+    {
+        long h = size;
+        for (int s = 0; s < size; s++)
+        {
+            h = h * 0x9E3779B97F4A7C15L + keys[s];
+            h = h * 31 + noteOn[s].getData1() * 128 + noteOn[s].getData2();
+        }
+        return h ^ h >>> 29;
+    }
+
+    /**
+     * Check if two compiled patterns have the same events
+     *
+     * @param other the other one
+     * @return true if equal
+     */
+    public boolean contentEquals (CompiledPattern other)
+    {
+        if (size != other.size)
+        {
+            return false;
+        }
+        for (int s = 0; s < size; s++)
+        {
+            if (keys[s] != other.keys[s] || !sameMessage(noteOn[s], other.noteOn[s])
+                    || !sameMessage(noteOff[s], other.noteOff[s]))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean sameMessage (ShortMessage a, ShortMessage b)
+    {
+        return a == b || Arrays.equals(a.getMessage(), b.getMessage());
+    }
+
+    /**
+     * Find first event at or after a step
+     *
+     * @param step step number
+     * @return index of that event or size() if there is none
+     */
+    public int indexOfStep (int step)
+    {
+        int idx = Arrays.binarySearch(keys, 0, size, key(0, step));
+        return idx < 0 ? -idx - 1 : idx;
+    }
+}
@@ -1,7 +1,8 @@
+package pattern;
 
 public class DrumKit
 {
-    static final String[] drumKitNames = new String[]
+    public static final String[] drumKitNames = new String[]
             {
                     "1  Standard Kit",
                     "9  Room Kit",
@@ -15,7 +16,7 @@ public class DrumKit
                     "128 Percussion"
             };
 
-    static final String[] instrumentNames = new String[]
+    public static final String[] instrumentNames = new String[]
             {
                     "27 High Q (GM2)",
                     "28 Slap (GM2)",
@@ -98,6 +99,24 @@ public class DrumKit
         return -1;
     }
 
+    /**
+     * Get name of an instrument, without warning if it's unknown
+     *
+     * @param instrument the MIDI number
+     * @return name with number in front
+     */
+    public static String getInstrumentName (int instrument)
+    {
+        for (String n : instrumentNames)
+        {
+            if (readNumber(n) == instrument)
+            {
+                return n;
+            }
+        }
+        return instrument + " Note";
+    }
+
     /**
      * Read a number from beginning of string
      *
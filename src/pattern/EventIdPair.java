@@ -0,0 +1,103 @@
+package pattern;
+
+/**
+ * IDs of the key on and key off event of one drum pad
+ * Layout of an ID:
+ * bit 62     : always set, tells new IDs from old ones (row * 100 + column * 2)
+ * bits 32-61 : column
+ * bits 1-31  : row
+ * bit 0      : set for key off
+ * So sorting IDs sorts pads by time
+ */
+public class EventIdPair
+{
+    private static final long PACKED = 1L << 62;
+    private static final long ROW_MASK = 0x7fffffffL;
+    private static final long COLUMN_MASK = 0x3fffffffL;
+
+    /**
+     * Get ID for KeyOn event
+     * @return ID
+     */
+    public long getKeyOnId ()
+    {
+        return eventOnId;
+    }
+
+    /**
+     * Get ID for KeyOff event
+     * @return ID
+     */
+    public long getKeyOffId ()
+    {
+        return eventOffId;
+    }
+
+    /**
+     * Build ID for KeyOn event
+     * @param x Column
+     * @param y Row
+     * @return ID
+     */
+    public static long keyOnId (int x, int y)
+    {
+        return PACKED | (long) x << 32 | (long) y << 1;
+    }
+
+    /**
+     * Check for IDs stored in old pattern files
+     * @param e Event ID
+     * @return true if ID is row * 100 + column * 2
+     */
+    public static boolean isLegacyId (long e)
+    {
+        return (e & PACKED) == 0;
+    }
+
+    /**
+     * Get Row number from Event ID
+     * @param e Event ID
+     * @return Row Number
+     */
+    public static int getRowNumber (long e)
+    {
+        if (isLegacyId(e))
+        {
+            return (int) (e / 100);
+        }
+        return (int) ((e >>> 1) & ROW_MASK);
+    }
+
+    /**
+     * Get Column number from Event ID
+     * @param e Event ID
+     * @return Col Number
+     */
+    public static int getColumnNumber (long e)
+    {
+        if (isLegacyId(e))
+        {
+            return (int) (e % 100)/2;
+        }
+        return (int) ((e >>> 32) & COLUMN_MASK);
+    }
+
+    public static boolean isKeyOnEvent (long e)
+    {
+        return (e & 1) == 0;
+    }
+
+    private final long eventOnId;
+    private final long eventOffId;
+
+    /**
+     * Create EventIdPair
+     * @param x Number of Button in every  DrumPadLine (Column)
+     * @param y Number of DrumPanels in DrumBox (Row)
+     */
+    public EventIdPair (int x, int y)
+    {
+        eventOnId = keyOnId(x, y);
+        eventOffId = eventOnId + 1;
+    }
+}
@@ -0,0 +1,32 @@
+package pattern;
+
+import javax.sound.midi.MidiMessage;
+
+/**
+ * Events in tick order that are produced on demand
+ * Used to play or write songs without building a Sequence
+ */
+public interface EventStream
+{
+    /**
+     * Move to the next event
+     *
+     * @return false if there are no more events
+     */
+    boolean next ();
+
+    /**
+     * Tick of current event
+     *
+     * @return tick, ticks are 1/960 quarter notes
+     */
+    long getTick ();
+
+    /**
+     * Message of current event
+     * Messages may be shared and must not be changed
+     *
+     * @return the message
+     */
+    MidiMessage getMessage ();
+}
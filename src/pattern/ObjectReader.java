@@ -0,0 +1,101 @@
+package pattern;
+
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.StreamCorruptedException;
+import java.nio.channels.FileChannel;
+
+public class ObjectReader
+{
+    private FileInputStream f_in;
+    private ObjectInputStream obj_in;
+    private IOException error;      // why the file couldn't be opened
+
+    /**
+     * Constructor, set file name
+     * @param fname file name
+     */
+    public ObjectReader (String fname)
+    {
+        try
+        {
+            f_in = new FileInputStream(fname);
+            obj_in = new ObjectInputStream(f_in);
+        }
+        catch (IOException e)
+        {
+            System.out.println(e);
+            error = e;
+        }
+    }
+
+    /**
+     * Get one Object, failures are thrown instead of printed
+     * @return the object
+     * @throws EOFException if the file ends before this object
+     * @throws IOException if the file can't be read or ends inside the object
+     * @throws ClassNotFoundException if the file holds an unknown class
+     */
+    public Object readObject () throws IOException, ClassNotFoundException
+    {
+        if (obj_in == null)
+        {
+            throw error;
+        }
+        FileChannel ch = f_in.getChannel();
+        if (ch.position() >= ch.size())
+        {
+            throw new EOFException();
+        }
+        try
+        {
+            return obj_in.readObject();
+        }
+        catch (EOFException e)
+        {
+            throw new StreamCorruptedException("truncated at byte " + ch.position());
+        }
+    }
+
+    /**
+     * Get one Object
+     * @return the object or null
+     */
+    public Object getObject()
+    {
+        try
+        {
+            return obj_in.readObject();
+        }
+        catch (Exception unused)
+        {
+            System.out.println("no more objects");
+            return null;
+        }
+    }
+
+    /**
+     * Close Object reader
+     * must finally be called
+     */
+    public void close()
+    {
+        try
+        {
+            if (obj_in != null)
+            {
+                obj_in.close();
+            }
+            if (f_in != null)
+            {
+                f_in.close();
+            }
+        }
+        catch (IOException e)
+        {
+            System.out.println(e);
+        }
+    }
+}
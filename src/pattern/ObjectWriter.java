@@ -1,3 +1,5 @@
+package pattern;
+
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
@@ -0,0 +1,116 @@
+package pattern;
+
+import javax.sound.midi.ShortMessage;
+
+/**
+ * Walks through the events of a compiled pattern that is repeated a number of times
+ * Repeats are generated on the fly, so nothing is copied per loop
+ * Events come in time order, note offs of one pass may follow
+ * note ons of the next pass
+ * Only pads inside the step count of the pattern are played
+ */
+public class PatternCursor implements EventStream
+{
+    private final CompiledPattern pattern;
+    private final int limit;        // number of events inside the step count
+    private final long passLength;  // ticks of one pass
+    private final int speed;
+    private final int noteLength;
+    private final int loops;
+    private int onPass;
+    private int onIdx;
+    private int offPass;
+    private int offIdx;
+    private long tick;
+    private ShortMessage message;
+
+    /**
+     * Constructor
+     *
+     * @param pattern    the compiled events
+     * @param steps      number of steps of one pass
+     * @param speed      ticks per step
+     * @param noteLength ticks between note on and note off
+     * @param loops      number of passes
+     */
+    public PatternCursor (CompiledPattern pattern, int steps, int speed, int noteLength, int loops)
+    {
+        this.pattern = pattern;
+        this.limit = pattern.indexOfStep(steps);
+        this.passLength = (long) steps * speed;
+        this.speed = speed;
+        this.noteLength = noteLength;
+        this.loops = limit == 0 ? 0 : loops;
+    }
+
+    /**
+     * Move to next event
+     *
+     * @return false if there are no more events
+     */
+    @Override
+    public boolean next ()
+    {
+        if (offPass >= loops)
+        {
+            return false;
+        }
+        long offTick = offPass * passLength + (long) pattern.getStep(offIdx) * speed + noteLength;
+        if (onPass < loops)
+        {
+            long onTick = onPass * passLength + (long) pattern.getStep(onIdx) * speed;
+            if (onTick < offTick)
+            {
+                tick = onTick;
+                message = pattern.getNoteOn(onIdx);
+                if (++onIdx == limit)
+                {
+                    onIdx = 0;
+                    onPass++;
+                }
+                return true;
+            }
+        }
+        tick = offTick;
+        message = pattern.getNoteOff(offIdx);
+        if (++offIdx == limit)
+        {
+            offIdx = 0;
+            offPass++;
+        }
+        return true;
+    }
+
+    /**
+     * Tick of current event
+     *
+     * @return tick, relative to the beginning of first pass
+     */
+    @Override
+    public long getTick ()
+    {
+        return tick;
+    }
+
+    /**
+     * Message of current event
+     * It's shared with the compiled pattern and must not be changed
+     *
+     * @return the message
+     */
+    @Override
+    public ShortMessage getMessage ()
+    {
+        return message;
+    }
+
+    /**
+     * Length of one pass
+     *
+     * @return number of ticks
+     */
+    public long getPassLength ()
+    {
+        return passLength;
+    }
+}
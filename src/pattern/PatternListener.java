@@ -0,0 +1,9 @@
+package pattern;
+
+/**
+ * Gets notified when a PatternModel has been changed
+ */
+public interface PatternListener
+{
+    void patternChanged (PatternModel model);
+}
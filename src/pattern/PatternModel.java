@@ -0,0 +1,978 @@
+package pattern;
+
+import sermidi.SerMidEvent;
+
+import javax.sound.midi.*;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Swing-free model of one drum pattern
+ * Holds everything a Drumbox shows, so patterns can be loaded,
+ * edited and compiled without building any UI
+ * Playing, exporting and cloning work on immutable snapshots:
+ * grid and compiled events are shared with the snapshot and
+ * copied on the next change (copy on write)
+ * All changes are recorded in an UndoJournal
+ */
+public class PatternModel
+{
+    public static final int LINES = 10;         // Lines of a new pattern
+    public static final int MAX_LINES = 128;    // One per MIDI note
+    public static final int STEPS = 32;         // Steps of a new pattern
+    public static final int MAX_STEPS = 1024;
+
+    private StepGrid grid = createGrid(LINES, STEPS);   // All drum pads
+    private CompiledPattern compiled = new CompiledPattern();  // Events of the pads
+    private boolean shared;         // grid and compiled are used by a snapshot
+    private PatternSnapshot snapshot;   // last snapshot if nothing changed since
+    private int steps = STEPS;      // Number of drum steps
+    private int speed = 50;         // Speed for this pattern
+    private int noteLength = 50;
+    private int volume = 127;
+    private int loopCount = 1;
+    private int drumKit = 0;        // Index into DrumKit.drumKitNames
+    private final ArrayList<PatternListener> listeners = new ArrayList<>();
+    private final UndoJournal journal = new UndoJournal();
+    private boolean replaying;      // undo or redo is running, record nothing
+    private int held;               // nesting of beginEdit/endEdit
+    private boolean changed;        // changed while listeners were held
+    private boolean stale;          // compiled events must be rebuilt
+
+    /**
+     * Create an empty grid with default instruments
+     *
+     * @param lines   number of rows
+     * @param columns number of columns
+     * @return the grid
+     */
+    private static StepGrid createGrid (int lines, int columns)
+    {
+        StepGrid g = new StepGrid(lines, columns);
+        setDefaultInstruments(g, 0);
+        return g;
+    }
+
+    /**
+     * Give rows of a grid their default instrument
+     *
+     * @param g     the grid
+     * @param first first row to set
+     */
+    private static void setDefaultInstruments (StepGrid g, int first)
+    {
+        for (int s = first; s < g.getRows(); s++)
+        {
+            int idx = (s + 8) % DrumKit.instrumentNames.length; // begin with base drum
+            g.setInstrument(s, DrumKit.readNumber(DrumKit.instrumentNames[idx]));
+        }
+    }
+
+    /**
+     * Register a listener that is called after every change
+     *
+     * @param l the listener
+     */
+    public void addListener (PatternListener l)
+    {
+        listeners.add(l);
+    }
+
+    private void fireChanged ()
+    {
+        snapshot = null;
+        if (held > 0)
+        {
+            changed = true;
+            return;
+        }
+        for (PatternListener l : listeners)
+        {
+            l.patternChanged(this);
+        }
+    }
+
+    /**
+     * Start a compound change
+     * Until endEdit() listeners are not called and all changes
+     * are one step in the undo journal
+     */
+    public void beginEdit ()
+    {
+        journal.begin();
+        held++;
+    }
+
+    /**
+     * End a compound change, listeners are called once
+     */
+    public void endEdit ()
+    {
+        journal.end();
+        release();
+    }
+
+    private void release ()
+    {
+        if (--held == 0 && stale)
+        {
+            recompile();
+        }
+        if (held == 0 && changed)
+        {
+            changed = false;
+            PatternSnapshot snap = snapshot;
+            fireChanged();
+            snapshot = snap;
+        }
+    }
+
+    /**
+     * Get the undo history
+     *
+     * @return the journal
+     */
+    public UndoJournal getJournal ()
+    {
+        return journal;
+    }
+
+    /**
+     * Take back the last change
+     *
+     * @return false if there was nothing to undo
+     */
+    public boolean undo ()
+    {
+        return replay(true);
+    }
+
+    /**
+     * Do the last undone change again
+     *
+     * @return false if there was nothing to redo
+     */
+    public boolean redo ()
+    {
+        return replay(false);
+    }
+
+    private boolean replay (boolean undo)
+    {
+        held++;
+        replaying = true;
+        try
+        {
+            return undo ? journal.undo(this) : journal.redo(this);
+        }
+        finally
+        {
+            replaying = false;
+            release();
+        }
+    }
+
+    /**
+     * Undo or redo one recorded change
+     *
+     * @param op   the change
+     * @param ref  snapshot of an OP_SNAPSHOT change
+     * @param undo true to set the old value, false to set the new one
+     * @return snapshot to store for the next undo or redo of that change
+     */
+    PatternSnapshot apply (long op, PatternSnapshot ref, boolean undo)
+    {
+        int value = undo ? UndoJournal.oldValue(op) : UndoJournal.newValue(op);
+        switch (UndoJournal.type(op))
+        {
+            case UndoJournal.OP_PAD:
+                putPad(UndoJournal.row(op), UndoJournal.column(op), value);
+                break;
+            case UndoJournal.OP_INSTRUMENT:
+                setInstrument(UndoJournal.row(op), value);
+                break;
+            case UndoJournal.OP_STEPS:
+                setSteps(value);
+                break;
+            case UndoJournal.OP_LINES:
+                setLines(value);
+                break;
+            case UndoJournal.OP_SPEED:
+                setSpeed(value);
+                break;
+            case UndoJournal.OP_NOTE_LENGTH:
+                setNoteLength(value);
+                break;
+            case UndoJournal.OP_VOLUME:
+                setVolume(value);
+                break;
+            case UndoJournal.OP_LOOPS:
+                setLoopCount(value);
+                break;
+            case UndoJournal.OP_KIT:
+                setDrumKit(value);
+                break;
+            case UndoJournal.OP_SNAPSHOT:
+                PatternSnapshot now = snapshot();
+                restore(ref);
+                return now;
+        }
+        return ref;
+    }
+
+    private void record (long op)
+    {
+        if (!replaying)
+        {
+            journal.record(op, null);
+        }
+    }
+
+    /**
+     * Record the current state before the whole pattern is replaced
+     */
+    private void recordSnapshot ()
+    {
+        if (!replaying)
+        {
+            journal.record(UndoJournal.valueOp(UndoJournal.OP_SNAPSHOT, 0, 0), snapshot());
+        }
+    }
+
+    /**
+     * Record change of a value
+     * Values that don't fit into a journal entry are recorded as snapshot
+     *
+     * @param type type of change
+     * @param old  old value
+     * @param now  new value
+     */
+    private void recordValue (int type, int old, int now)
+    {
+        if (UndoJournal.fits(old) && UndoJournal.fits(now))
+        {
+            record(UndoJournal.valueOp(type, old, now));
+        }
+        else
+        {
+            recordSnapshot();
+        }
+    }
+
+    private int padState (int line, int step)
+    {
+        return UndoJournal.padState(grid.isSet(line, step),
+                grid.getNote(line, step), grid.getVelocity(line, step));
+    }
+
+    /**
+     * Set a drum pad to a state recorded in the journal
+     *
+     * @param line  Row number
+     * @param step  Column number
+     * @param state the state
+     */
+    private void putPad (int line, int step, int state)
+    {
+        beforeWrite();
+        if (state == 0)
+        {
+            grid.clear(line, step);
+            compiled.remove(line, step);
+        }
+        else
+        {
+            int note = state >>> 7 & 127;
+            grid.set(line, step, note, state & 127);
+            compiled.put(line, step, note, state & 127);
+        }
+        fireChanged();
+    }
+
+    /**
+     * Must be called before grid or compiled events are changed
+     * Copies both if they are shared with a snapshot
+     */
+    private void beforeWrite ()
+    {
+        if (shared)
+        {
+            grid = new StepGrid(grid);
+            compiled = new CompiledPattern(compiled);
+            shared = false;
+        }
+    }
+
+    /**
+     * Compile all pads again
+     */
+    private void recompile ()
+    {
+        stale = false;
+        compiled = new CompiledPattern();
+        compiled.rebuild(grid);
+    }
+
+    /**
+     * Get an immutable copy of the current state
+     * Costs O(1), the data is shared until this model changes
+     *
+     * @return the snapshot
+     */
+    public PatternSnapshot snapshot ()
+    {
+        if (stale)
+        {
+            recompile();
+        }
+        if (snapshot == null)
+        {
+            shared = true;
+            snapshot = new PatternSnapshot(grid, compiled, steps, speed,
+                    noteLength, volume, loopCount, drumKit);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Set this model to the state of a snapshot
+     * Costs O(1), the data is shared until this model changes
+     *
+     * @param snap the snapshot
+     */
+    public void restore (PatternSnapshot snap)
+    {
+        recordSnapshot();
+        grid = snap.getGrid();
+        compiled = snap.getCompiled();
+        stale = false;
+        shared = true;
+        steps = snap.getSteps();
+        speed = snap.getSpeed();
+        noteLength = snap.getNoteLength();
+        volume = snap.getVolume();
+        loopCount = snap.getLoopCount();
+        drumKit = snap.getDrumKit();
+        fireChanged();
+        snapshot = snap;
+    }
+
+    /**
+     * Set a drum pad
+     *
+     * @param line     Row number
+     * @param step     Column number
+     * @param velocity Note on velocity
+     */
+    public void setHit (int line, int step, int velocity)
+    {
+        int note = grid.getInstrument(line);
+        record(UndoJournal.padOp(line, step, padState(line, step),
+                UndoJournal.padState(true, note, velocity)));
+        beforeWrite();
+        grid.set(line, step, grid.getInstrument(line), velocity);
+        compiled.put(line, step, grid.getInstrument(line), velocity);
+        fireChanged();
+    }
+
+    /**
+     * Remove a drum pad
+     *
+     * @param line Row number
+     * @param step Column number
+     */
+    public void clearHit (int line, int step)
+    {
+        if (!grid.isSet(line, step))
+        {
+            return;
+        }
+        record(UndoJournal.padOp(line, step, padState(line, step), 0));
+        beforeWrite();
+        grid.clear(line, step);
+        compiled.remove(line, step);
+        fireChanged();
+    }
+
+    /**
+     * Remove all drum pads of one line
+     *
+     * @param line Row number
+     */
+    public void clearLine (int line)
+    {
+        beginEdit();
+        recordClear(line);
+        beforeWrite();
+        grid.clearRow(line);
+        compiled.removeRow(line);
+        fireChanged();
+        endEdit();
+    }
+
+    /**
+     * Record that all pads of a line are removed
+     *
+     * @param line Row number
+     */
+    private void recordClear (int line)
+    {
+        for (int w = 0; w < grid.getWordsPerRow(); w++)
+        {
+            long bits = grid.getWord(line, w);
+            while (bits != 0)
+            {
+                int step = w << 6 | Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                record(UndoJournal.padOp(line, step, padState(line, step), 0));
+            }
+        }
+    }
+
+    /**
+     * Check if a drum pad is set
+     *
+     * @param line Row number
+     * @param step Column number
+     * @return true if set
+     */
+    public boolean isHit (int line, int step)
+    {
+        return grid.isSet(line, step);
+    }
+
+    /**
+     * Get note on velocity of a drum pad
+     *
+     * @param line Row number
+     * @param step Column number
+     * @return The velocity or 0 if pad is not set
+     */
+    public int getVelocity (int line, int step)
+    {
+        return grid.isSet(line, step) ? grid.getVelocity(line, step) : 0;
+    }
+
+    /**
+     * Get instrument of a drum pad
+     *
+     * @param line Row number
+     * @param step Column number
+     * @return MIDI note number or -1 if pad is not set
+     */
+    public int getNote (int line, int step)
+    {
+        return grid.isSet(line, step) ? grid.getNote(line, step) : -1;
+    }
+
+    /**
+     * Get the drum pads for reading
+     * The grid may be shared with snapshots and must not be changed
+     *
+     * @return the grid
+     */
+    public StepGrid getGrid ()
+    {
+        return grid;
+    }
+
+    /**
+     * Get the drum pads for direct changes
+     * Changes must be followed by gridChanged()
+     *
+     * @return the grid, owned by this model
+     */
+    public StepGrid editGrid ()
+    {
+        recordSnapshot();
+        beforeWrite();
+        return grid;
+    }
+
+    /**
+     * Must be called after the grid was changed directly
+     * Recompiles all events and notifies listeners
+     * Between beginEdit() and endEdit() both is done only once at the end
+     */
+    public void gridChanged ()
+    {
+        if (held > 0)
+        {
+            stale = true;
+        }
+        else
+        {
+            recompile();
+        }
+        fireChanged();
+    }
+
+    /**
+     * Set every n-th pad of a line
+     *
+     * @param line     Row number
+     * @param n        distance of pads, 1 sets all
+     * @param offset   first step
+     * @param velocity Note on velocity
+     */
+    public void fillEvery (int line, int n, int offset, int velocity)
+    {
+        n = Math.max(1, n);
+        editGrid().fillEvery(line, n, Math.floorMod(offset, n), steps, grid.getInstrument(line), velocity);
+        gridChanged();
+    }
+
+    /**
+     * Move all pads of a line, pads that fall out come in at the other end
+     *
+     * @param line  Row number
+     * @param shift steps to move, negative moves to the left
+     */
+    public void rotateLine (int line, int shift)
+    {
+        editGrid().moveRow(line, shift, steps, true);
+        gridChanged();
+    }
+
+    /**
+     * Move all pads of a line, pads that fall out are lost
+     *
+     * @param line  Row number
+     * @param shift steps to move, negative moves to the left
+     */
+    public void shiftLine (int line, int shift)
+    {
+        editGrid().moveRow(line, shift, steps, false);
+        gridChanged();
+    }
+
+    /**
+     * Switch all pads of a line
+     *
+     * @param line     Row number
+     * @param velocity Note on velocity of new pads
+     */
+    public void invertLine (int line, int velocity)
+    {
+        editGrid().invertRow(line, steps, grid.getInstrument(line), velocity);
+        gridChanged();
+    }
+
+    /**
+     * Copy all pads of a line into another one
+     *
+     * @param from source line
+     * @param to   destination line
+     */
+    public void copyLine (int from, int to)
+    {
+        if (from != to)
+        {
+            editGrid().copyRow(from, to);
+            gridChanged();
+        }
+    }
+
+    /**
+     * Add random hits to a line, existing hits are kept
+     *
+     * @param line     Row number
+     * @param density  probability of a hit, 0 ... 1
+     * @param velocity Note on velocity
+     * @param rnd      random numbers
+     */
+    public void randomizeLine (int line, double density, int velocity, Random rnd)
+    {
+        editGrid().randomizeRow(line, steps, density, grid.getInstrument(line), velocity, rnd);
+        gridChanged();
+    }
+
+    /**
+     * Add random hits to all lines, existing hits are kept
+     *
+     * @param density  probability of a hit, 0 ... 1
+     * @param velocity Note on velocity
+     * @param rnd      random numbers
+     */
+    public void randomize (double density, int velocity, Random rnd)
+    {
+        StepGrid g = editGrid();
+        for (int line = 0; line < g.getRows(); line++)
+        {
+            g.randomizeRow(line, steps, density, g.getInstrument(line), velocity, rnd);
+        }
+        gridChanged();
+    }
+
+    /**
+     * Get the compiled events of one pass through this pattern
+     *
+     * @return the events, sorted by step
+     */
+    public CompiledPattern getCompiled ()
+    {
+        if (stale)
+        {
+            recompile();
+        }
+        return compiled;
+    }
+
+    public int getInstrument (int line)
+    {
+        return grid.getInstrument(line);
+    }
+
+    /**
+     * Set instrument of a line
+     * Only new drum pads get that instrument
+     *
+     * @param line       Row number
+     * @param instrument MIDI note number
+     */
+    public void setInstrument (int line, int instrument)
+    {
+        if (grid.getInstrument(line) != instrument)
+        {
+            record(UndoJournal.instrumentOp(line, grid.getInstrument(line), instrument));
+            beforeWrite();
+            grid.setInstrument(line, instrument);
+            fireChanged();
+        }
+    }
+
+    public int getSteps ()
+    {
+        return steps;
+    }
+
+    /**
+     * Set number of steps
+     * The grid grows if needed, pads behind the last step are kept
+     *
+     * @param steps number of steps, 1 ... MAX_STEPS
+     */
+    public void setSteps (int steps)
+    {
+        if (steps >= 1 && steps <= MAX_STEPS && this.steps != steps)
+        {
+            record(UndoJournal.valueOp(UndoJournal.OP_STEPS, this.steps, steps));
+            if (steps > grid.getColumns())
+            {
+                beforeWrite();
+                grid = new StepGrid(grid, grid.getRows(), steps);
+            }
+            this.steps = steps;
+            fireChanged();
+        }
+    }
+
+    public int getLines ()
+    {
+        return grid.getRows();
+    }
+
+    /**
+     * Set number of lines
+     * New lines get default instruments, pads of removed lines are lost
+     *
+     * @param lines number of lines, 1 ... MAX_LINES
+     */
+    public void setLines (int lines)
+    {
+        int old = grid.getRows();
+        if (lines >= 1 && lines <= MAX_LINES && old != lines)
+        {
+            beginEdit();
+            for (int s = lines; s < old; s++)   // keep removed lines for undo
+            {
+                int instrument = grid.getInstrument(s);
+                record(UndoJournal.instrumentOp(s, instrument, instrument));
+                recordClear(s);
+            }
+            record(UndoJournal.valueOp(UndoJournal.OP_LINES, old, lines));
+            beforeWrite();
+            grid = new StepGrid(grid, lines, grid.getColumns());
+            setDefaultInstruments(grid, old);
+            if (lines < old)
+            {
+                recompile();
+            }
+            fireChanged();
+            endEdit();
+        }
+    }
+
+    public int getSpeed ()
+    {
+        return speed;
+    }
+
+    public void setSpeed (int speed)
+    {
+        if (this.speed != speed)
+        {
+            recordValue(UndoJournal.OP_SPEED, this.speed, speed);
+            this.speed = speed;
+            fireChanged();
+        }
+    }
+
+    public int getNoteLength ()
+    {
+        return noteLength;
+    }
+
+    public void setNoteLength (int noteLength)
+    {
+        if (this.noteLength != noteLength)
+        {
+            recordValue(UndoJournal.OP_NOTE_LENGTH, this.noteLength, noteLength);
+            this.noteLength = noteLength;
+            fireChanged();
+        }
+    }
+
+    public int getVolume ()
+    {
+        return volume;
+    }
+
+    public void setVolume (int volume)
+    {
+        if (this.volume != volume)
+        {
+            recordValue(UndoJournal.OP_VOLUME, this.volume, volume);
+            this.volume = volume;
+            fireChanged();
+        }
+    }
+
+    public int getLoopCount ()
+    {
+        return loopCount;
+    }
+
+    public void setLoopCount (int loopCount)
+    {
+        if (this.loopCount != loopCount)
+        {
+            recordValue(UndoJournal.OP_LOOPS, this.loopCount, loopCount);
+            this.loopCount = loopCount;
+            fireChanged();
+        }
+    }
+
+    /**
+     * Get drum kit
+     *
+     * @return index into DrumKit.drumKitNames
+     */
+    public int getDrumKit ()
+    {
+        return drumKit;
+    }
+
+    public void setDrumKit (int drumKit)
+    {
+        if (this.drumKit != drumKit)
+        {
+            recordValue(UndoJournal.OP_KIT, this.drumKit, drumKit);
+            this.drumKit = drumKit;
+            fireChanged();
+        }
+    }
+
+    /**
+     * Get MIDI program number of the drum kit
+     *
+     * @return program number (1-based)
+     */
+    public int getDrumKitProgram ()
+    {
+        return DrumKit.readNumber(DrumKit.drumKitNames[drumKit]);
+    }
+
+    /**
+     * Initialize this pattern from another one
+     *
+     * @param src the source pattern
+     */
+    public void copyFrom (PatternModel src)
+    {
+        restore(src.snapshot());
+    }
+
+    /**
+     * Saves one pattern to disk
+     *
+     * @param w the writer
+     * @see PatternSnapshot#write(ObjectWriter)
+     */
+    public void write (ObjectWriter w)
+    {
+        snapshot().write(w);
+    }
+
+    /**
+     * Loads one pattern from an ObjectReader
+     * Old pattern files have an event map instead of the step grid
+     * Throws a RuntimeException if the stream holds no (further) pattern
+     *
+     * @param r the reader
+     */
+    public void read (ObjectReader r)
+    {
+        Object pads = r.getObject();
+        int speedValue = (Integer) r.getObject();
+        String loops = (String) r.getObject();
+        int stepCount = (Integer) r.getObject();
+        int eventLength = (Integer) r.getObject();
+        int eventVolume = (Integer) r.getObject();
+        int kit = (Integer) r.getObject();
+        load(pads, speedValue, loops, stepCount, eventLength, eventVolume, kit);
+    }
+
+    /**
+     * Loads the next pattern of a project, the end of the file is no error
+     * Nothing is printed, so it's made for reading many files
+     *
+     * @param r the reader
+     * @return false if there are no more patterns
+     * @throws IOException if the file is broken or holds something else
+     */
+    public boolean readNext (ObjectReader r) throws IOException
+    {
+        try
+        {
+            Object pads;
+            try
+            {
+                pads = r.readObject();
+            }
+            catch (EOFException e)
+            {
+                return false;
+            }
+            if (pads == null)
+            {
+                return false;
+            }
+            int speedValue = (Integer) r.readObject();
+            String loops = (String) r.readObject();
+            int stepCount = (Integer) r.readObject();
+            int eventLength = (Integer) r.readObject();
+            int eventVolume = (Integer) r.readObject();
+            int kit = (Integer) r.readObject();
+            load(pads, speedValue, loops, stepCount, eventLength, eventVolume, kit);
+            return true;
+        }
+        catch (ClassNotFoundException | RuntimeException e)
+        {
+            throw new IOException("Broken pattern: " + e, e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void load (Object pads, int speedValue, String loops, int stepCount,
+                       int eventLength, int eventVolume, int kit)
+    {
+        StepGrid loaded;
+        if (pads instanceof StepGrid)
+        {
+            loaded = (StepGrid) pads;
+        }
+        else if (pads instanceof HashMap)
+        {
+            loaded = createGrid(LINES, Math.max(STEPS, stepCount));
+            loaded.loadEventMap((HashMap<Long, SerMidEvent>) pads);
+        }
+        else
+        {
+            throw new IllegalStateException("no pattern");
+        }
+        recordSnapshot();
+        grid = loaded;
+        speed = speedValue;
+        loopCount = parseLoopCount(loops);
+        steps = stepCount;
+        noteLength = eventLength;
+        volume = eventVolume;
+        drumKit = kit;
+        shared = false;
+        recompile();
+        fireChanged();
+    }
+
+    /**
+     * Loads one pattern from a file
+     *
+     * @param filename file name
+     */
+    public void read (String filename)
+    {
+        ObjectReader r = new ObjectReader(filename);
+        try
+        {
+            read(r);
+        }
+        finally
+        {
+            r.close();
+        }
+    }
+
+    /**
+     * Save pattern to a file
+     *
+     * @param filename file name
+     */
+    public void write (String filename)
+    {
+        ObjectWriter w = new ObjectWriter(filename);
+        write(w);
+        w.close();
+    }
+
+    /**
+     * Convert loop count string into a number
+     *
+     * @param s the string
+     * @return the number, 1 if string is invalid
+     */
+    public static int parseLoopCount (String s)
+    {
+        try
+        {
+            return Math.max(0, Integer.parseInt(s.trim()));
+        }
+        catch (Exception e)
+        {
+            return 1;
+        }
+    }
+
+    /**
+     * Get a cursor over all events of all loops
+     *
+     * @return a new cursor
+     */
+    public PatternCursor cursor ()
+    {
+        return snapshot().cursor();
+    }
+
+    /**
+     * Create a new Sequence that can be played or saved
+     *
+     * @return The sequence
+     * @see PatternSnapshot#createSequence()
+     */
+    public Sequence createSequence ()
+    {
+        return snapshot().createSequence();
+    }
+}
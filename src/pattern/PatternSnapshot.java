@@ -0,0 +1,275 @@
+package pattern;
+
+import javax.sound.midi.*;
+
+/**
+ * Immutable state of a PatternModel at one point in time
+ * Grid and compiled events are shared with the model until the model
+ * is changed, so taking a snapshot costs nothing
+ * Snapshots can be played, exported and saved from any thread
+ */
+public final class PatternSnapshot
+{
+    private final StepGrid grid;
+    private final CompiledPattern compiled;
+    private final int steps;
+    private final int speed;
+    private final int noteLength;
+    private final int volume;
+    private final int loopCount;
+    private final int drumKit;
+
+    PatternSnapshot (StepGrid grid, CompiledPattern compiled, int steps, int speed,
+                     int noteLength, int volume, int loopCount, int drumKit)
+    {
+        this.grid = grid;
+        this.compiled = compiled;
+        this.steps = steps;
+        this.speed = speed;
+        this.noteLength = noteLength;
+        this.volume = volume;
+        this.loopCount = loopCount;
+        this.drumKit = drumKit;
+    }
+
+    /**
+     * Create a snapshot of a grid that was built without a PatternModel
+     * Other values are those of a new PatternModel
+     *
+     * @param grid  the grid, must not be changed afterwards
+     * @param steps number of steps
+     * @param speed speed value
+     * @return the snapshot
+     */
+    public static PatternSnapshot of (StepGrid grid, int steps, int speed)
+    {
+        CompiledPattern c = new CompiledPattern();
+        c.rebuild(grid);
+        return new PatternSnapshot(grid, c, steps, speed, 50, 127, 1, 0);
+    }
+
+    /**
+     * Get the drum pads
+     * The grid is shared and must not be changed
+     *
+     * @return the grid
+     */
+    public StepGrid getGrid ()
+    {
+        return grid;
+    }
+
+    /**
+     * Get the compiled events of one pass
+     * The events are shared and must not be changed
+     *
+     * @return the events, sorted by step
+     */
+    public CompiledPattern getCompiled ()
+    {
+        return compiled;
+    }
+
+    public int getLines ()
+    {
+        return grid.getRows();
+    }
+
+    public int getSteps ()
+    {
+        return steps;
+    }
+
+    public int getSpeed ()
+    {
+        return speed;
+    }
+
+    public int getNoteLength ()
+    {
+        return noteLength;
+    }
+
+    public int getVolume ()
+    {
+        return volume;
+    }
+
+    public int getLoopCount ()
+    {
+        return loopCount;
+    }
+
+    public int getDrumKit ()
+    {
+        return drumKit;
+    }
+
+    /**
+     * Get MIDI program number of the drum kit
+     *
+     * @return program number (1-based)
+     */
+    public int getDrumKitProgram ()
+    {
+        return DrumKit.readNumber(DrumKit.drumKitNames[drumKit]);
+    }
+
+    /**
+     * Compute a hash over everything that makes up the note events
+     * Drum kit is not part of it
+     *
+     * @return the hash
+     */
+    public long eventHash ()
+    {
+        long h = compiled.contentHash();
+        h = h * 31 + steps;
+        h = h * 31 + speed;
+        h = h * 31 + noteLength;
+        return h * 31 + loopCount;
+    }
+
+    /**
+     * Check if two patterns create the same note events
+     *
+     * @param other the other pattern
+     * @return true if a cursor over both gives the same events
+     */
+    public boolean sameEvents (PatternSnapshot other)
+    {
+        return other == this || steps == other.steps && speed == other.speed
+                && noteLength == other.noteLength && loopCount == other.loopCount
+                && compiled.contentEquals(other.compiled);
+    }
+
+    /**
+     * Saves the pattern
+     * 1. the step grid containing all drum pads
+     * 2. speed value
+     * 3. Loop value
+     * 4. drum steps (size of line)
+     * 5. note Length
+     * 6. Volume
+     * 7. Drum kit
+     *
+     * @param w the writer
+     */
+    public void write (ObjectWriter w)
+    {
+        w.putObject(grid);
+        w.putObject(speed);
+        w.putObject(Integer.toString(loopCount));
+        w.putObject(steps);
+        w.putObject(noteLength);
+        w.putObject(volume);
+        w.putObject(drumKit);
+    }
+
+    /**
+     * Get a cursor over all events of all loops
+     *
+     * @return a new cursor
+     */
+    public PatternCursor cursor ()
+    {
+        return new PatternCursor(compiled, steps, speed, noteLength, loopCount);
+    }
+
+    /**
+     * Get a cursor over the events of one pass
+     * Note offs at the end may fall behind the pass length
+     *
+     * @return a new cursor
+     */
+    public PatternCursor passCursor ()
+    {
+        return new PatternCursor(compiled, steps, speed, noteLength, 1);
+    }
+
+    /**
+     * Stream the program change and all loops, for playback without a Sequence
+     *
+     * @return the events
+     */
+    public EventStream stream ()
+    {
+        ShortMessage prog;
+        try
+        {
+            prog = new ShortMessage(ShortMessage.PROGRAM_CHANGE, 9, getDrumKitProgram() - 1, 0);
+        }
+        catch (InvalidMidiDataException e)
+        {
+            System.out.println(e);
+            return cursor();
+        }
+        PatternCursor c = cursor();
+        return new EventStream()
+        {
+            private boolean atProgram;  // true while the program change is the current event
+            private boolean started;
+
+            @Override
+            public boolean next ()
+            {
+                atProgram = !started;
+                started = true;
+                return atProgram || c.next();
+            }
+
+            @Override
+            public long getTick ()
+            {
+                return atProgram ? 0 : c.getTick();
+            }
+
+            @Override
+            public MidiMessage getMessage ()
+            {
+                return atProgram ? prog : c.getMessage();
+            }
+        };
+    }
+
+    /**
+     * Create a new Sequence that can be played or saved
+     * All loops are written one after another
+     *
+     * @return The sequence
+     */
+    public Sequence createSequence ()
+    {
+        return createSequence(cursor());
+    }
+
+    /**
+     * Create a Sequence holding the program change and all events of a cursor
+     *
+     * @param c the cursor or null
+     * @return The sequence
+     */
+    private Sequence createSequence (PatternCursor c)
+    {
+        try
+        {
+            Sequence seq = new Sequence(0.0f, 960);
+            Track tr = seq.createTrack();
+            // ---------------------------------
+            ShortMessage prog = new ShortMessage(ShortMessage.PROGRAM_CHANGE,
+                    9, getDrumKitProgram() - 1, 0);
+            tr.add(new MidiEvent(prog, 0));
+            //---------------------------------
+            while (c != null && c.next())
+            {
+                tr.add(new MidiEvent(c.getMessage(), c.getTick()));
+            }
+            return seq;
+        }
+        catch (InvalidMidiDataException e)
+        {
+            System.out.println(e);
+            return null;
+        }
+    }
+}
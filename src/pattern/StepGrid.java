@@ -0,0 +1,378 @@
+package pattern;
+
+import sermidi.SerMidEvent;
+import sermidi.SerShortMessage;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Compact store of all drum pads of one pattern
+ * Every row is a bitmask of hits (one long per 64 columns), instrument
+ * and velocity of every pad live in primitive arrays
+ */
+public class StepGrid implements Serializable
+{
+    static final long serialVersionUID = 1L;
+
+    private final int rows;
+    private final int columns;
+    private final long[] hits;          // one bit per pad, row by row
+    private final byte[] notes;         // note of every pad, row by row
+    private final byte[] velocities;    // velocity of every pad, row by row
+    private final byte[] instruments;   // instrument for new pads of a row
+
+    /**
+     * Constructor: empty grid
+     *
+     * @param rows    number of rows
+     * @param columns number of columns
+     */
+    public StepGrid (int rows, int columns)
+    {
+        this.rows = rows;
+        this.columns = columns;
+        hits = new long[rows * wordsPerRow(columns)];
+        notes = new byte[rows * columns];
+        velocities = new byte[rows * columns];
+        instruments = new byte[rows];
+    }
+
+    /**
+     * Copy constructor
+     *
+     * @param src the source grid
+     */
+    public StepGrid (StepGrid src)
+    {
+        rows = src.rows;
+        columns = src.columns;
+        hits = src.hits.clone();
+        notes = src.notes.clone();
+        velocities = src.velocities.clone();
+        instruments = src.instruments.clone();
+    }
+
+    /**
+     * Copy a grid into one of a different size
+     * Pads outside the new size are dropped
+     *
+     * @param src     the source grid
+     * @param rows    number of rows
+     * @param columns number of columns
+     */
+    public StepGrid (StepGrid src, int rows, int columns)
+    {
+        this(rows, columns);
+        int r = Math.min(rows, src.rows);
+        int c = Math.min(columns, src.columns);
+        int words = wordsPerRow(c);
+        for (int row = 0; row < r; row++)
+        {
+            System.arraycopy(src.hits, row * src.words(), hits, row * words(), words);
+            System.arraycopy(src.notes, row * src.columns, notes, row * columns, c);
+            System.arraycopy(src.velocities, row * src.columns, velocities, row * columns, c);
+            instruments[row] = src.instruments[row];
+            if ((c & 63) != 0)
+            {
+                hits[row * words() + words - 1] &= (1L << c) - 1;   // cut off last word
+            }
+        }
+    }
+
+    private static int wordsPerRow (int columns)
+    {
+        return (columns + 63) >>> 6;
+    }
+
+    private int words ()
+    {
+        return wordsPerRow(columns);
+    }
+
+    public int getRows ()
+    {
+        return rows;
+    }
+
+    public int getColumns ()
+    {
+        return columns;
+    }
+
+    /**
+     * Set a pad
+     *
+     * @param row      Row number
+     * @param column   Column number
+     * @param note     MIDI note number
+     * @param velocity Note on velocity
+     */
+    public void set (int row, int column, int note, int velocity)
+    {
+        hits[row * words() + (column >>> 6)] |= 1L << column;
+        notes[row * columns + column] = (byte) note;
+        velocities[row * columns + column] = (byte) velocity;
+    }
+
+    /**
+     * Remove a pad
+     *
+     * @param row    Row number
+     * @param column Column number
+     */
+    public void clear (int row, int column)
+    {
+        hits[row * words() + (column >>> 6)] &= ~(1L << column);
+    }
+
+    /**
+     * Remove all pads of a row
+     *
+     * @param row Row number
+     */
+    public void clearRow (int row)
+    {
+        int words = words();
+        for (int w = 0; w < words; w++)
+        {
+            hits[row * words + w] = 0;
+        }
+    }
+
+    /**
+     * Remove pads 0 ... length-1 of a row
+     *
+     * @param row    Row number
+     * @param length number of columns
+     */
+    private void clearColumns (int row, int length)
+    {
+        int base = row * words();
+        for (int w = 0; w << 6 < length; w++)
+        {
+            hits[base + w] &= ~mask(w, length);
+        }
+    }
+
+    /**
+     * Bits of a word that are below a column
+     *
+     * @param word   Number of word
+     * @param length number of columns
+     * @return bitmask
+     */
+    private static long mask (int word, int length)
+    {
+        int n = length - (word << 6);
+        return n >= 64 ? -1L : (1L << n) - 1;
+    }
+
+    /**
+     * Set every n-th pad of a row
+     *
+     * @param row      Row number
+     * @param n        distance of pads
+     * @param offset   first column
+     * @param length   number of columns to fill
+     * @param note     MIDI note number
+     * @param velocity Note on velocity
+     */
+    public void fillEvery (int row, int n, int offset, int length, int note, int velocity)
+    {
+        for (int c = offset; c < length; c += n)
+        {
+            set(row, c, note, velocity);
+        }
+    }
+
+    /**
+     * Move all pads of a row
+     * Only columns 0 ... length-1 are moved, the others are kept
+     *
+     * @param row    Row number
+     * @param shift  columns to move, negative moves to the left
+     * @param length number of columns
+     * @param wrap   true: pads that fall out come in at the other end
+     *               false: they are lost
+     */
+    public void moveRow (int row, int shift, int length, boolean wrap)
+    {
+        int base = row * columns;
+        int words = words();
+        byte[] n = Arrays.copyOfRange(notes, base, base + length);
+        byte[] v = Arrays.copyOfRange(velocities, base, base + length);
+        long[] old = Arrays.copyOfRange(hits, row * words, row * words + words);
+        clearColumns(row, length);
+        for (int w = 0; w << 6 < length; w++)
+        {
+            long bits = old[w] & mask(w, length);
+            while (bits != 0)
+            {
+                int c = w << 6 | Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                int d = c + shift;
+                if (wrap)
+                {
+                    d = Math.floorMod(d, length);
+                }
+                else if (d < 0 || d >= length)
+                {
+                    continue;
+                }
+                set(row, d, n[c], v[c]);
+            }
+        }
+    }
+
+    /**
+     * Switch pads 0 ... length-1 of a row, set ones go off and others go on
+     *
+     * @param row      Row number
+     * @param length   number of columns
+     * @param note     MIDI note number of new pads
+     * @param velocity Note on velocity of new pads
+     */
+    public void invertRow (int row, int length, int note, int velocity)
+    {
+        int base = row * words();
+        for (int w = 0; w << 6 < length; w++)
+        {
+            long mask = mask(w, length);
+            long added = ~hits[base + w] & mask;
+            hits[base + w] ^= mask;
+            while (added != 0)
+            {
+                int c = row * columns + (w << 6 | Long.numberOfTrailingZeros(added));
+                added &= added - 1;
+                notes[c] = (byte) note;
+                velocities[c] = (byte) velocity;
+            }
+        }
+    }
+
+    /**
+     * Copy all pads of a row into another one
+     *
+     * @param from source row
+     * @param to   destination row
+     */
+    public void copyRow (int from, int to)
+    {
+        int words = words();
+        System.arraycopy(hits, from * words, hits, to * words, words);
+        System.arraycopy(notes, from * columns, notes, to * columns, columns);
+        System.arraycopy(velocities, from * columns, velocities, to * columns, columns);
+    }
+
+    /**
+     * Add random hits to pads 0 ... length-1 of a row
+     * Pads that are already on are kept as they are
+     *
+     * @param row      Row number
+     * @param length   number of columns
+     * @param density  probability of a hit, 0 ... 1
+     * @param note     MIDI note number
+     * @param velocity Note on velocity
+     * @param rnd      random numbers
+     */
+    public void randomizeRow (int row, int length, double density, int note, int velocity, Random rnd)
+    {
+        for (int c = 0; c < length; c++)
+        {
+            if (rnd.nextDouble() < density && !isSet(row, c))
+            {
+                set(row, c, note, velocity);
+            }
+        }
+    }
+
+    public boolean isSet (int row, int column)
+    {
+        return (hits[row * words() + (column >>> 6)] & (1L << column)) != 0;
+    }
+
+    /**
+     * Number of longs that hold the pads of one row
+     *
+     * @return number of words
+     */
+    public int getWordsPerRow ()
+    {
+        return words();
+    }
+
+    /**
+     * Get 64 pads of a row
+     *
+     * @param row  Row number
+     * @param word Number of word, column / 64
+     * @return bitmask, bit n is column word * 64 + n
+     */
+    public long getWord (int row, int word)
+    {
+        return hits[row * words() + word];
+    }
+
+    public int getNote (int row, int column)
+    {
+        return notes[row * columns + column];
+    }
+
+    public int getVelocity (int row, int column)
+    {
+        return velocities[row * columns + column];
+    }
+
+    public int getInstrument (int row)
+    {
+        return instruments[row];
+    }
+
+    public void setInstrument (int row, int instrument)
+    {
+        instruments[row] = (byte) instrument;
+    }
+
+    /**
+     * Count all pads that are set
+     *
+     * @return number of hits
+     */
+    public int countHits ()
+    {
+        int n = 0;
+        for (long l : hits)
+        {
+            n += Long.bitCount(l);
+        }
+        return n;
+    }
+
+    /**
+     * Fill this grid from an event map of old pattern files
+     * Instruments of the rows are taken from the key on events
+     *
+     * @param eventMap Map of event IDs to events
+     */
+    public void loadEventMap (Map<Long, SerMidEvent> eventMap)
+    {
+        for (Map.Entry<Long, SerMidEvent> e : eventMap.entrySet())
+        {
+            long k = e.getKey();
+            if (EventIdPair.isKeyOnEvent(k))
+            {
+                int row = EventIdPair.getRowNumber(k);
+                int column = EventIdPair.getColumnNumber(k);
+                if (row < rows && column < columns)
+                {
+                    SerShortMessage msg = (SerShortMessage) e.getValue().getMessage();
+                    set(row, column, msg.getData1(), msg.getData2());
+                    instruments[row] = (byte) msg.getData1();
+                }
+            }
+        }
+    }
+}
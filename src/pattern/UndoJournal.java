@@ -0,0 +1,315 @@
+package pattern;
+
+import java.util.Arrays;
+
+/**
+ * Undo/redo history of a PatternModel
+ * Every change is one long that holds old and new value (see the OP_ constants),
+ * changes that replace the whole pattern keep a snapshot of the old state instead
+ * Changes are collected in groups, one group is undone or redone at once
+ */
+public class UndoJournal
+{
+    public static final int MAX_LEVELS = 500;
+
+    // Types of changes, stored in the 4 top bits
+    static final int OP_PAD = 0;          // row, column, old and new pad state
+    static final int OP_INSTRUMENT = 1;   // row, old and new note
+    static final int OP_STEPS = 2;        // old and new value ...
+    static final int OP_LINES = 3;
+    static final int OP_SPEED = 4;
+    static final int OP_NOTE_LENGTH = 5;
+    static final int OP_VOLUME = 6;
+    static final int OP_LOOPS = 7;
+    static final int OP_KIT = 8;
+    static final int OP_SNAPSHOT = 9;     // whole pattern, see refs
+
+    private static final long VALUE_MASK = (1L << 28) - 1;
+
+    private long[] ops = new long[64];
+    private PatternSnapshot[] refs = new PatternSnapshot[64];
+    private int opCount;
+    private int[] groupStart = new int[16];
+    private int groups;     // all groups, including those that can be redone
+    private int top;        // groups that can be undone
+    private int depth;      // nesting of begin/end
+    private boolean open;   // a group was started since begin
+    private boolean mergeable;  // last group is one value change that may be merged
+
+    /**
+     * Pack a pad change
+     *
+     * @param row    Row number
+     * @param column Column number
+     * @param old    old state, see padState()
+     * @param now    new state, see padState()
+     * @return the change
+     */
+    static long padOp (int row, int column, int old, int now)
+    {
+        return (long) OP_PAD << 60 | (long) row << 41 | (long) column << 30 | (long) old << 15 | now;
+    }
+
+    /**
+     * Pack an instrument change
+     *
+     * @param row Row number
+     * @param old old MIDI note number
+     * @param now new MIDI note number
+     * @return the change
+     */
+    static long instrumentOp (int row, int old, int now)
+    {
+        return (long) OP_INSTRUMENT << 60 | (long) row << 41 | (long) (old & 127) << 15 | (now & 127);
+    }
+
+    /**
+     * Pack state of a pad into 15 bits
+     *
+     * @param on       pad is set
+     * @param note     MIDI note number
+     * @param velocity Note on velocity
+     * @return the state
+     */
+    static int padState (boolean on, int note, int velocity)
+    {
+        return on ? 1 << 14 | (note & 127) << 7 | (velocity & 127) : 0;
+    }
+
+    /**
+     * Pack a change of a value
+     *
+     * @param type type of change
+     * @param old  old value
+     * @param now  new value
+     * @return the change
+     */
+    static long valueOp (int type, int old, int now)
+    {
+        return (long) type << 60 | (old & VALUE_MASK) << 28 | (now & VALUE_MASK);
+    }
+
+    /**
+     * Check if a value can be stored by valueOp()
+     *
+     * @param value the value
+     * @return true if it fits
+     */
+    static boolean fits (int value)
+    {
+        return value >= 0 && value <= VALUE_MASK;
+    }
+
+    static int type (long op)
+    {
+        return (int) (op >>> 60);
+    }
+
+    static int row (long op)
+    {
+        return (int) (op >>> 41) & 0x7ffff;
+    }
+
+    static int column (long op)
+    {
+        return (int) (op >>> 30) & 0x7ff;
+    }
+
+    /**
+     * Old value or old pad state
+     *
+     * @param op the change
+     * @return value
+     */
+    static int oldValue (long op)
+    {
+        return type(op) <= OP_INSTRUMENT ? (int) (op >>> 15) & 0x7fff : (int) ((op >>> 28) & VALUE_MASK);
+    }
+
+    /**
+     * New value or new pad state
+     *
+     * @param op the change
+     * @return value
+     */
+    static int newValue (long op)
+    {
+        return type(op) <= OP_INSTRUMENT ? (int) op & 0x7fff : (int) (op & VALUE_MASK);
+    }
+
+    /**
+     * Start a group, all changes until end() are undone together
+     * Groups may be nested, only the outermost one counts
+     */
+    public void begin ()
+    {
+        if (depth++ == 0)
+        {
+            open = false;
+        }
+    }
+
+    /**
+     * Close a group
+     */
+    public void end ()
+    {
+        if (--depth == 0 && open && top > MAX_LEVELS)
+        {
+            dropOldest();
+        }
+    }
+
+    /**
+     * Start a new group at the end, everything that could be redone is lost
+     */
+    private void openGroup ()
+    {
+        if (top < groups)
+        {
+            int n = groupStart[top];
+            Arrays.fill(refs, n, opCount, null);
+            opCount = n;
+            groups = top;
+        }
+        if (groups == groupStart.length)
+        {
+            groupStart = Arrays.copyOf(groupStart, groups * 2);
+        }
+        groupStart[groups++] = opCount;
+        top = groups;
+    }
+
+    private int end (int group)
+    {
+        return group + 1 < groups ? groupStart[group + 1] : opCount;
+    }
+
+    private void dropOldest ()
+    {
+        int n = groupStart[1];
+        opCount -= n;
+        System.arraycopy(ops, n, ops, 0, opCount);
+        System.arraycopy(refs, n, refs, 0, opCount);
+        Arrays.fill(refs, opCount, opCount + n, null);
+        for (int s = 1; s < groups; s++)
+        {
+            groupStart[s - 1] = groupStart[s] - n;
+        }
+        groups--;
+        top--;
+    }
+
+    /**
+     * Store a change
+     * A change of speed, note length, volume or loops outside of a group is
+     * merged with the one before if both have the same type,
+     * so moving a slider is one step
+     *
+     * @param op  the change
+     * @param ref old snapshot for OP_SNAPSHOT, else null
+     */
+    void record (long op, PatternSnapshot ref)
+    {
+        int type = type(op);
+        boolean value = type >= OP_SPEED && type <= OP_LOOPS;
+        if (depth == 0 && value && mergeable && top == groups
+                && type(ops[opCount - 1]) == type)
+        {
+            ops[opCount - 1] = valueOp(type, oldValue(ops[opCount - 1]), newValue(op));
+            return;
+        }
+        if (depth == 0 || !open)
+        {
+            openGroup();
+            open = depth > 0;
+        }
+        if (opCount == ops.length)
+        {
+            ops = Arrays.copyOf(ops, opCount * 2);
+            refs = Arrays.copyOf(refs, opCount * 2);
+        }
+        ops[opCount] = op;
+        refs[opCount] = ref;
+        opCount++;
+        if (depth == 0 && top > MAX_LEVELS)
+        {
+            dropOldest();
+        }
+        mergeable = depth == 0 && value;
+    }
+
+    public boolean canUndo ()
+    {
+        return top > 0 && depth == 0;
+    }
+
+    public boolean canRedo ()
+    {
+        return top < groups && depth == 0;
+    }
+
+    /**
+     * Number of groups that can be undone
+     *
+     * @return number of undo levels
+     */
+    public int getUndoLevels ()
+    {
+        return top;
+    }
+
+    /**
+     * Forget everything
+     */
+    public void clear ()
+    {
+        Arrays.fill(refs, 0, opCount, null);
+        opCount = 0;
+        groups = 0;
+        top = 0;
+        mergeable = false;
+    }
+
+    /**
+     * Take back the last group
+     *
+     * @param model the model to change
+     * @return false if there was nothing to undo
+     */
+    boolean undo (PatternModel model)
+    {
+        if (!canUndo())
+        {
+            return false;
+        }
+        top--;
+        for (int s = end(top) - 1; s >= groupStart[top]; s--)
+        {
+            refs[s] = model.apply(ops[s], refs[s], true);
+        }
+        mergeable = false;
+        return true;
+    }
+
+    /**
+     * Do the next group again
+     *
+     * @param model the model to change
+     * @return false if there was nothing to redo
+     */
+    boolean redo (PatternModel model)
+    {
+        if (!canRedo())
+        {
+            return false;
+        }
+        for (int s = groupStart[top]; s < end(top); s++)
+        {
+            refs[s] = model.apply(ops[s], refs[s], false);
+        }
+        top++;
+        mergeable = false;
+        return true;
+    }
+}
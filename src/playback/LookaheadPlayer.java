@@ -0,0 +1,304 @@
+package playback;
+
+import arrangement.TempoMap;
+import pattern.EventStream;
+
+import javax.sound.midi.*;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays an EventStream in real time
+ * A dedicated high priority thread takes the events from the stream just
+ * before they are due and sends them to a Receiver, nothing is prepared
+ * in advance, so playback starts at once no matter how long the song is
+ * If the device can handle time stamps (like the software synthesizer),
+ * events are sent up to LOOKAHEAD early with their exact time,
+ * otherwise they are sent when they are due
+ * Tempo meta events of the stream set the clock when their tick is reached, they are not sent
+ * The tempo factor can be changed while playing, like Sequencer.setTempoFactor
+ */
+public class LookaheadPlayer
+{
+    private static final long LOOKAHEAD = 20_000;       // microseconds
+    private static final long MAX_SLEEP = 2_000_000;    // nanoseconds
+
+    private final Receiver receiver;
+    private final MidiDevice device;    // for time stamps or null
+    private volatile Thread thread;
+    private volatile double tempoFactor = 1;
+
+    /**
+     * Constructor
+     *
+     * @param receiver where the events go
+     */
+    public LookaheadPlayer (Receiver receiver)
+    {
+        this.receiver = receiver;
+        MidiDevice d = null;
+        if (receiver instanceof MidiDeviceReceiver)
+        {
+            d = ((MidiDeviceReceiver) receiver).getMidiDevice();
+            if (!(d instanceof Synthesizer) || d.getMicrosecondPosition() < 0)
+            {
+                d = null;
+            }
+        }
+        device = d;
+    }
+
+    /**
+     * Start playback, a running playback is stopped before
+     *
+     * @param stream the events
+     * @param onEnd  called on the player thread when the stream has been played to its end, may be null
+     */
+    public synchronized void start (EventStream stream, Runnable onEnd)
+    {
+        stop();
+        Thread t = new Thread(() -> run(stream, onEnd), "LookaheadPlayer");
+        t.setPriority(Thread.MAX_PRIORITY);
+        t.setDaemon(true);
+        thread = t;
+        t.start();
+    }
+
+    /**
+     * Stop playback and silence all notes
+     */
+    public synchronized void stop ()
+    {
+        Thread t = thread;
+        if (t == null)
+        {
+            return;
+        }
+        thread = null;
+        t.interrupt();
+        try
+        {
+            t.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        allNotesOff();
+    }
+
+    public boolean isRunning ()
+    {
+        return thread != null;
+    }
+
+    /**
+     * Change the tempo of the running and all further playbacks
+     * Takes effect within a few milliseconds, events already sent ahead keep their time
+     *
+     * @param factor 1 is the tempo of the stream, 2 is twice as fast
+     */
+    public void setTempoFactor (double factor)
+    {
+        if (factor > 0)
+        {
+            tempoFactor = factor;
+        }
+    }
+
+    public double getTempoFactor ()
+    {
+        return tempoFactor;
+    }
+
+    private void run (EventStream stream, Runnable onEnd)
+    {
+        Thread me = Thread.currentThread();
+        Clock clock = new Clock();
+        long startNanos = clock.anchorNanos;
+        long startMicros = device == null ? 0 : device.getMicrosecondPosition();
+        long lastTick = 0;
+        while (thread == me && stream.next())
+        {
+            long tick = stream.getTick();
+            MidiMessage msg = stream.getMessage();
+            if (msg instanceof MetaMessage)
+            {
+                MetaMessage mm = (MetaMessage) msg;
+                if (mm.getType() == 0x51 && mm.getData().length == 3)
+                {
+                    while (clock.isFull())  // ramps over sparse patterns, all later events come after the oldest
+                    {
+                        if (!waitUntil(clock, clock.firstTick(), 0, me))
+                        {
+                            return;
+                        }
+                        clock.follow(tempoFactor);
+                    }
+                    byte[] d = mm.getData();
+                    clock.setTempo(tick, (d[0] & 0xff) << 16 | (d[1] & 0xff) << 8 | d[2] & 0xff);
+                }
+                continue;
+            }
+            lastTick = tick;
+            if (!waitUntil(clock, tick, device == null ? 0 : LOOKAHEAD, me))
+            {
+                return;
+            }
+            receiver.send(msg, device == null ? -1 : startMicros + (clock.nanosOf(tick) - startNanos) / 1000);
+        }
+        if (thread == me && waitUntil(clock, lastTick, 0, me))
+        {
+            thread = null;
+            if (onEnd != null)
+            {
+                onEnd.run();
+            }
+        }
+    }
+
+    /**
+     * Sleep until a tick is reached
+     * The time of the tick is computed again after each short sleep,
+     * so tempo changes are followed
+     *
+     * @param clock the clock
+     * @param tick  the tick
+     * @param early microseconds to return before the tick is due
+     * @param me    the player thread
+     * @return false if playback was stopped
+     */
+    private boolean waitUntil (Clock clock, long tick, long early, Thread me)
+    {
+        while (thread == me)
+        {
+            clock.follow(tempoFactor);
+            long wait = clock.nanosOf(tick) - early * 1000 - System.nanoTime();
+            if (wait <= 0)
+            {
+                return true;
+            }
+            LockSupport.parkNanos(Math.min(wait, MAX_SLEEP));
+        }
+        return false;
+    }
+
+    /**
+     * Relation of ticks and System.nanoTime() of one playback
+     * It's anchored where the tempo or the tempo factor changed last
+     * Tempo events are read up to LOOKAHEAD early, they wait in a queue until
+     * their tick is reached, so a new tempo factor scales each part of the
+     * song with its own tempo
+     */
+    private static class Clock
+    {
+        private static final int QUEUE = 64;    // tempo events waiting, power of 2
+
+        long anchorNanos = System.nanoTime();
+        double anchorTick;
+        double nanosPerTick = TempoMap.DEFAULT_TEMPO * 1000.0 / TempoMap.RESOLUTION;   // at factor 1
+        double factor = 1;
+        private final long[] queueTicks = new long[QUEUE];
+        private final double[] queueNanosPerTick = new double[QUEUE];
+        private int first;
+        private int count;
+
+        /**
+         * Get time of a tick, tempo events before it are taken into account
+         */
+        long nanosOf (long tick)
+        {
+            double nanos = anchorNanos;
+            double from = anchorTick;
+            double npt = nanosPerTick;
+            for (int i = 0; i < count; i++)
+            {
+                int q = first + i & QUEUE - 1;
+                if (queueTicks[q] >= tick)
+                {
+                    break;
+                }
+                nanos += (queueTicks[q] - from) * npt / factor;
+                from = queueTicks[q];
+                npt = queueNanosPerTick[q];
+            }
+            return (long) (nanos + (tick - from) * npt / factor);
+        }
+
+        boolean isFull ()
+        {
+            return count == QUEUE;
+        }
+
+        /**
+         * Get tick of the oldest queued tempo event
+         */
+        long firstTick ()
+        {
+            return queueTicks[first];
+        }
+
+        /**
+         * Tempo event of the stream, queued until its tick is reached
+         * The queue must not be full, see isFull
+         */
+        void setTempo (long tick, int microsPerQuarter)
+        {
+            if (count == QUEUE)
+            {
+                throw new IllegalStateException("Tempo queue full");
+            }
+            int q = first + count & QUEUE - 1;
+            queueTicks[q] = tick;
+            queueNanosPerTick[q] = microsPerQuarter * 1000.0 / TempoMap.RESOLUTION;
+            count++;
+        }
+
+        /**
+         * Make the oldest queued tempo event the anchor
+         */
+        private void apply ()
+        {
+            long tick = queueTicks[first];
+            anchorNanos = nanosOf(tick);
+            anchorTick = tick;
+            nanosPerTick = queueNanosPerTick[first];
+            first = first + 1 & QUEUE - 1;
+            count--;
+        }
+
+        /**
+         * Take the tempo events that are due and a new tempo factor,
+         * the current position stays where it is
+         */
+        void follow (double newFactor)
+        {
+            long now = System.nanoTime();
+            while (count > 0 && nanosOf(queueTicks[first]) <= now)
+            {
+                apply();
+            }
+            if (newFactor != factor)
+            {
+                anchorTick += (now - anchorNanos) * factor / nanosPerTick;
+                anchorNanos = now;
+                factor = newFactor;
+            }
+        }
+    }
+
+    /**
+     * Events may have been sent ahead, so the device gets the message when the window has passed
+     */
+    private void allNotesOff ()
+    {
+        try
+        {
+            long when = device == null ? -1 : device.getMicrosecondPosition() + LOOKAHEAD;
+            receiver.send(new ShortMessage(ShortMessage.CONTROL_CHANGE, 9, 123, 0), when);
+        }
+        catch (InvalidMidiDataException e)
+        {
+            System.out.println(e);
+        }
+    }
+}
@@ -0,0 +1,317 @@
+package playback;
+
+import pattern.EventStream;
+
+import javax.sound.midi.*;
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Renders an EventStream into a WAV file without a sound card
+ * The software synthesizer (Gervill) is driven through its stream interface,
+ * so audio is computed as fast as the CPU allows, not in real time
+ * Events are taken from the stream block by block and sent with their time,
+ * only one block is ahead of the synthesizer, so a song of any length can be rendered
+ * Tempo meta events of the stream set the time of the following events
+ * Reverb takes most of the time, a draft render leaves out the effects and
+ * uses the simplest interpolation, it's about 2.5 times faster
+ * The stream interface (AudioSynthesizer.openStream) is no public API, it's called by reflection,
+ * so the code builds on every JDK; from Java 9 on it has to be exported at run time:
+ * --add-exports java.desktop/com.sun.media.sound=ALL-UNNAMED (the jar's manifest does that)
+ */
+public class OfflineRenderer
+{
+    public static final AudioFormat FORMAT = new AudioFormat(44100, 16, 2, true, false);
+    static final long TAIL = 2_000_000;                 // microseconds of sound after the last event
+    private static final int BLOCK = 4096;              // frames rendered at once
+
+    private boolean draft;
+    private Soundbank soundbank;
+    private long minLength;
+    private long audioMicros;
+    private long renderNanos;
+
+    /**
+     * Draft quality: no reverb and chorus, point interpolation
+     *
+     * @param draft true for fast rendering
+     */
+    public void setDraft (boolean draft)
+    {
+        this.draft = draft;
+    }
+
+    /**
+     * Use a soundbank instead of the default one
+     *
+     * @param soundbank the soundbank or null for the default soundbank
+     */
+    public void setSoundbank (Soundbank soundbank)
+    {
+        this.soundbank = soundbank;
+    }
+
+    /**
+     * Make the audio at least that long, so the files of a song's parts fit together
+     *
+     * @param micros minimal length in microseconds
+     */
+    public void setMinLength (long micros)
+    {
+        minLength = micros;
+    }
+
+    /**
+     * Length of the last rendered audio
+     *
+     * @return microseconds
+     */
+    public long getAudioMicros ()
+    {
+        return audioMicros;
+    }
+
+    /**
+     * Time the last render took, including writing the file
+     *
+     * @return nanoseconds
+     */
+    public long getRenderNanos ()
+    {
+        return renderNanos;
+    }
+
+    /**
+     * Speed of the last render
+     *
+     * @return seconds of audio per second of rendering, 10 means ten times faster than real time
+     */
+    public double getRealtimeFactor ()
+    {
+        return renderNanos == 0 ? 0 : audioMicros * 1000.0 / renderNanos;
+    }
+
+    /**
+     * Render a song into a WAV file
+     *
+     * @param stream the events
+     * @param f      the file, will be overwritten
+     * @return length of the audio in microseconds
+     * @throws MidiUnavailableException if there is no software synthesizer
+     * @throws IOException              if writing fails
+     */
+    public long render (EventStream stream, File f) throws MidiUnavailableException, IOException
+    {
+        Synthesizer synth = MidiSystem.getSynthesizer();
+        long t0 = System.nanoTime();
+        HashMap<String, Object> info = new HashMap<>();
+        if (draft)
+        {
+            info.put("reverb", false);
+            info.put("chorus", false);
+            info.put("interpolation", "point");
+        }
+        if (soundbank != null)
+        {
+            info.put("load default soundbank", false);
+        }
+        AudioInputStream audio = openStream(synth, info);
+        try
+        {
+            if (soundbank != null && !synth.loadAllInstruments(soundbank))
+            {
+                throw new MidiUnavailableException("Soundbank not supported: " + soundbank.getName());
+            }
+            Feeder feeder = new Feeder(stream, synth.getReceiver(), audio, minLength);
+            AudioSystem.write(new AudioInputStream(feeder, FORMAT, AudioSystem.NOT_SPECIFIED),
+                    AudioFileFormat.Type.WAVE, f);
+            audioMicros = feeder.frames * 1000000L / (long) FORMAT.getFrameRate();
+            renderNanos = System.nanoTime() - t0;
+            return audioMicros;
+        }
+        finally
+        {
+            synth.close();
+        }
+    }
+
+    /**
+     * Open the synthesizer for rendering into a stream instead of a sound card
+     *
+     * @param synth the synthesizer, must be Gervill
+     * @param info  settings of the synthesizer
+     * @return its audio
+     * @throws MidiUnavailableException if the synthesizer can't do that
+     */
+    private static AudioInputStream openStream (Synthesizer synth, Map<String, Object> info)
+            throws MidiUnavailableException
+    {
+        try
+        {
+            Method open = Class.forName("com.sun.media.sound.AudioSynthesizer")
+                    .getMethod("openStream", AudioFormat.class, Map.class);
+            if (!open.getDeclaringClass().isInstance(synth))
+            {
+                throw new MidiUnavailableException("No software synthesizer: " + synth.getDeviceInfo());
+            }
+            return (AudioInputStream) open.invoke(synth, FORMAT, info);
+        }
+        catch (InvocationTargetException e)
+        {
+            if (e.getCause() instanceof MidiUnavailableException)
+            {
+                throw (MidiUnavailableException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+        catch (ReflectiveOperationException | RuntimeException e)
+        {
+            MidiUnavailableException mue = new MidiUnavailableException("Software synthesizer not accessible, "
+                    + "run with --add-exports java.desktop/com.sun.media.sound=ALL-UNNAMED: " + e);
+            mue.initCause(e);
+            throw mue;
+        }
+    }
+
+    /**
+     * Read until len bytes are read or the stream ends
+     *
+     * @param in  the stream
+     * @param b   the buffer
+     * @param off first byte in the buffer
+     * @param len number of bytes
+     * @return bytes read, less than len only at the end of the stream
+     * @throws IOException if reading fails
+     */
+    static int readFully (InputStream in, byte[] b, int off, int len) throws IOException
+    {
+        int n = 0;
+        while (n < len)
+        {
+            int r = in.read(b, off + n, len - n);
+            if (r < 0)
+            {
+                break;
+            }
+            n += r;
+        }
+        return n;
+    }
+
+    /**
+     * Audio of the synthesizer, before each block the events of that block are sent
+     * Ends TAIL after the last event, but not before the minimal length
+     */
+    private static class Feeder extends InputStream
+    {
+        private final EventStream stream;
+        private final Receiver receiver;
+        private final AudioInputStream audio;
+        private final int frameSize = FORMAT.getFrameSize();
+        private final byte[] one = new byte[1];
+        private long frames;            // rendered so far
+        private final long minLength;
+        private long endMicros = -1;    // time of the end, known when the stream is through
+        private final StreamTime time = new StreamTime();
+        // event that is taken from the stream but not yet sent, its time stays after sending
+        private MidiMessage pending;
+        private long pendingMicros;
+
+        Feeder (EventStream stream, Receiver receiver, AudioInputStream audio, long minLength)
+        {
+            this.stream = stream;
+            this.receiver = receiver;
+            this.audio = audio;
+            this.minLength = minLength;
+        }
+
+        @Override
+        public int read () throws IOException
+        {
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read (byte[] b, int off, int len) throws IOException
+        {
+            long blockFrames = Math.min(BLOCK, len / frameSize);
+            if (blockFrames == 0)
+            {
+                throw new IOException("Read less than one frame");
+            }
+            long blockEnd = micros(frames + blockFrames);
+            send(blockEnd);
+            if (endMicros >= 0)
+            {
+                blockFrames = Math.min(blockFrames, (long) Math.ceil(endMicros * FORMAT.getFrameRate() / 1e6) - frames);
+                if (blockFrames <= 0)
+                {
+                    return -1;
+                }
+            }
+            int bytes = (int) blockFrames * frameSize;
+            int n = readFully(audio, b, off, bytes);
+            frames += n / frameSize;
+            return n == 0 ? -1 : n;
+        }
+
+        private static long micros (long frames)
+        {
+            return (long) (frames * 1e6 / FORMAT.getFrameRate());
+        }
+
+        /**
+         * Send all events before a time
+         *
+         * @param until end of the block in microseconds
+         */
+        private void send (long until)
+        {
+            while (endMicros < 0)
+            {
+                if (pending == null && !take())
+                {
+                    return;
+                }
+                if (pendingMicros >= until)
+                {
+                    return;
+                }
+                receiver.send(pending, pendingMicros);
+                pending = null;
+            }
+        }
+
+        /**
+         * Take the next event that is not a meta event from the stream
+         *
+         * @return false if the stream is through
+         */
+        private boolean take ()
+        {
+            while (stream.next())
+            {
+                long tick = stream.getTick();
+                MidiMessage msg = stream.getMessage();
+                if (time.tempo(tick, msg) || msg instanceof MetaMessage)
+                {
+                    continue;
+                }
+                pending = msg;
+                pendingMicros = (long) time.micros(tick);
+                return true;
+            }
+            endMicros = Math.max(pendingMicros + TAIL, minLength);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,571 @@
+package playback;
+
+import arrangement.Section;
+import pattern.EventStream;
+
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Soundbank;
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Rendered audio of song sections on disk, so a song is only rendered again where it changed
+ * A section is found by a hash (SHA-256) of all that makes its sound: its events in
+ * microseconds (pattern content and tempo), its program change (drum kit),
+ * the soundbank and the render settings
+ * Files are WAV files named by the hash, the least recently used ones are deleted
+ * when the cache grows beyond its size; the order survives in the file times
+ * A song is stitched together from its sections, overlapping sections are added
+ * One cache may be used by several threads
+ */
+public class RenderCache
+{
+    private static final String VERSION = "1";  // change if rendered audio changes
+    private static final int BLOCK = 4096;      // frames mixed at once
+
+    private final Path dir;
+    private final long budget;
+    private final LinkedHashMap<String, Long> files = new LinkedHashMap<>(16, 0.75f, true); // sizes, least recently used first
+    private final HashMap<String, Integer> pinned = new HashMap<>();    // in use by running renders
+    private long size;
+    private boolean draft;
+    private Soundbank soundbank;
+    private String soundbankId;
+
+    /**
+     * Constructor, takes the files that are already in the directory
+     *
+     * @param dir    the directory, is created if needed
+     * @param budget size of the cache in bytes
+     * @throws IOException if the directory can't be read
+     */
+    public RenderCache (File dir, long budget) throws IOException
+    {
+        this.dir = dir.toPath();
+        this.budget = budget;
+        Files.createDirectories(this.dir);
+        List<Path> found;
+        try (Stream<Path> s = Files.list(this.dir))
+        {
+            found = s.filter(p -> p.toString().endsWith(".wav")).collect(Collectors.toList());
+        }
+        HashMap<Path, Long> times = new HashMap<>();
+        for (Path p : found)
+        {
+            times.put(p, Files.getLastModifiedTime(p).toMillis());
+        }
+        found.sort(Comparator.comparing(times::get));
+        for (Path p : found)
+        {
+            String name = p.getFileName().toString();
+            long bytes = Files.size(p);
+            files.put(name.substring(0, name.length() - 4), bytes);
+            size += bytes;
+        }
+        evict();
+    }
+
+    /**
+     * Draft quality, see OfflineRenderer.setDraft
+     *
+     * @param draft true for fast rendering
+     */
+    public synchronized void setDraft (boolean draft)
+    {
+        this.draft = draft;
+    }
+
+    /**
+     * Use a soundbank file instead of the default soundbank
+     *
+     * @param f the file or null for the default soundbank
+     * @throws Exception if the soundbank can't be loaded
+     */
+    public synchronized void setSoundbank (File f) throws Exception
+    {
+        if (f == null)
+        {
+            soundbank = null;
+            soundbankId = null;
+            return;
+        }
+        soundbank = MidiSystem.getSoundbank(f);
+        soundbankId = "file " + hex(MessageDigest.getInstance("SHA-256").digest(Files.readAllBytes(f.toPath())));
+    }
+
+    /**
+     * Result of a render
+     */
+    public static class Result
+    {
+        private final long audioMicros;
+        private final int sections;
+        private final int rendered;
+        private final long nanos;
+
+        Result (long audioMicros, int sections, int rendered, long nanos)
+        {
+            this.audioMicros = audioMicros;
+            this.sections = sections;
+            this.rendered = rendered;
+            this.nanos = nanos;
+        }
+
+        /**
+         * Get length of the song
+         *
+         * @return microseconds of audio
+         */
+        public long getAudioMicros ()
+        {
+            return audioMicros;
+        }
+
+        /**
+         * Get number of different sections of the song
+         *
+         * @return the number
+         */
+        public int getSections ()
+        {
+            return sections;
+        }
+
+        /**
+         * Get number of sections that were not in the cache
+         *
+         * @return the number
+         */
+        public int getRendered ()
+        {
+            return rendered;
+        }
+
+        /**
+         * Get time the render took, with lookup and mixing
+         *
+         * @return nanoseconds
+         */
+        public long getNanos ()
+        {
+            return nanos;
+        }
+
+        @Override
+        public String toString ()
+        {
+            return String.format("%d of %d sections rendered, %.1f s audio in %.1f s",
+                    rendered, sections, audioMicros / 1e6, nanos / 1e9);
+        }
+    }
+
+    /**
+     * Render settings, taken once per render so keys and audio always match
+     */
+    private static class Settings
+    {
+        final boolean draft;
+        final Soundbank soundbank;
+        final String text;      // goes into the keys
+
+        Settings (boolean draft, Soundbank soundbank, String soundbankId)
+        {
+            this.draft = draft;
+            this.soundbank = soundbank;
+            text = VERSION + " " + OfflineRenderer.FORMAT + " " + OfflineRenderer.TAIL + " " + draft
+                    + " " + soundbankId;
+        }
+    }
+
+    private synchronized Settings settings ()
+    {
+        if (soundbankId == null)
+        {
+            soundbankId = defaultSoundbankId();
+        }
+        return new Settings(draft, soundbank, soundbankId);
+    }
+
+    /**
+     * Render a song into a WAV file
+     * Sections that are not in the cache are rendered in parallel,
+     * then all sections are mixed into the file
+     *
+     * @param sections the song, see ArrangementCompiler.sections
+     * @param f        the file, will be overwritten
+     * @return what has been done
+     * @throws MidiUnavailableException if there is no software synthesizer
+     * @throws IOException              if reading or writing fails
+     */
+    public Result render (Section[] sections, File f) throws MidiUnavailableException, IOException
+    {
+        long t0 = System.nanoTime();
+        Settings settings = settings();
+        String[] keys = new String[sections.length];
+        LinkedHashMap<String, Section> distinct = new LinkedHashMap<>();
+        for (int s = 0; s < sections.length; s++)
+        {
+            keys[s] = key(sections[s], settings);
+            distinct.putIfAbsent(keys[s], sections[s]);
+        }
+        pin(distinct.keySet(), 1);
+        try
+        {
+            List<String> missing = distinct.keySet().stream()
+                    .filter(k -> !lookup(k))
+                    .collect(Collectors.toList());
+            Exception[] errors = new Exception[missing.size()];
+            IntStream.range(0, missing.size()).parallel().forEach(m ->
+            {
+                try
+                {
+                    renderSection(missing.get(m), distinct.get(missing.get(m)), settings);
+                }
+                catch (Exception e)
+                {
+                    errors[m] = e;
+                }
+            });
+            for (Exception e : errors)
+            {
+                if (e instanceof IOException)
+                {
+                    throw (IOException) e;
+                }
+                if (e instanceof MidiUnavailableException)
+                {
+                    throw (MidiUnavailableException) e;
+                }
+                if (e != null)
+                {
+                    throw (RuntimeException) e;
+                }
+            }
+            long frames = mix(sections, keys, f);
+            long micros = (long) (frames * 1e6 / OfflineRenderer.FORMAT.getFrameRate());
+            return new Result(micros, distinct.size(), missing.size(), System.nanoTime() - t0);
+        }
+        finally
+        {
+            pin(distinct.keySet(), -1);
+            evict();
+        }
+    }
+
+    /**
+     * Compute the key of a section
+     *
+     * @param section  the section
+     * @param settings render settings
+     * @return hex string of the hash
+     */
+    private static String key (Section section, Settings settings)
+    {
+        MessageDigest md;
+        try
+        {
+            md = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+        md.update(settings.text.getBytes(StandardCharsets.UTF_8));
+        byte[] tick = new byte[8];
+        EventStream es = section.stream();
+        while (es.next())
+        {
+            long t = es.getTick();
+            for (int b = 0; b < 8; b++)
+            {
+                tick[b] = (byte) (t >>> 8 * b);
+            }
+            MidiMessage msg = es.getMessage();
+            md.update(tick);
+            md.update(msg.getMessage(), 0, msg.getLength());
+        }
+        return hex(md.digest());
+    }
+
+    private static String defaultSoundbankId ()
+    {
+        try
+        {
+            Soundbank sb = MidiSystem.getSynthesizer().getDefaultSoundbank();
+            return sb == null ? "none" : "default " + sb.getName() + " " + sb.getVersion() + " " + sb.getVendor();
+        }
+        catch (MidiUnavailableException e)
+        {
+            return "none";
+        }
+    }
+
+    private static String hex (byte[] b)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (byte x : b)
+        {
+            sb.append(String.format("%02x", x));
+        }
+        return sb.toString();
+    }
+
+    private Path file (String key)
+    {
+        return dir.resolve(key + ".wav");
+    }
+
+    /**
+     * Look for a section, it becomes the most recently used one
+     *
+     * @param key the key
+     * @return true if it's in the cache
+     */
+    private synchronized boolean lookup (String key)
+    {
+        if (files.get(key) == null)
+        {
+            return false;
+        }
+        try
+        {
+            Files.setLastModifiedTime(file(key), FileTime.fromMillis(System.currentTimeMillis()));
+            return true;
+        }
+        catch (IOException e)
+        {
+            size -= files.remove(key);  // deleted from outside
+            return false;
+        }
+    }
+
+    /**
+     * Render a section into the cache
+     *
+     * @param key      its key
+     * @param section  the section
+     * @param settings the settings the key was made with
+     */
+    private void renderSection (String key, Section section, Settings settings)
+            throws MidiUnavailableException, IOException
+    {
+        OfflineRenderer or = new OfflineRenderer();
+        or.setDraft(settings.draft);
+        or.setSoundbank(settings.soundbank);
+        Path tmp = Files.createTempFile(dir, key, ".tmp");
+        try
+        {
+            or.render(section.stream(), tmp.toFile());
+            Files.move(tmp, file(key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally
+        {
+            Files.deleteIfExists(tmp);
+        }
+        synchronized (this)
+        {
+            Long old = files.put(key, Files.size(file(key)));
+            size += files.get(key) - (old == null ? 0 : old);
+        }
+    }
+
+    private synchronized void pin (Collection<String> keys, int d)
+    {
+        for (String k : keys)
+        {
+            pinned.merge(k, d, (a, b) -> a + b == 0 ? null : a + b);
+        }
+    }
+
+    /**
+     * Delete the least recently used files until the cache fits into its budget
+     * Files that are in use are kept
+     */
+    private synchronized void evict ()
+    {
+        Iterator<Map.Entry<String, Long>> it = files.entrySet().iterator();
+        while (size > budget && it.hasNext())
+        {
+            Map.Entry<String, Long> e = it.next();
+            if (pinned.containsKey(e.getKey()))
+            {
+                continue;
+            }
+            try
+            {
+                Files.deleteIfExists(file(e.getKey()));
+            }
+            catch (IOException ex)
+            {
+                System.out.println(ex);
+                continue;
+            }
+            size -= e.getValue();
+            it.remove();
+        }
+    }
+
+    /**
+     * Mix the sections into a WAV file
+     *
+     * @return length in frames
+     */
+    private long mix (Section[] sections, String[] keys, File f) throws IOException
+    {
+        Part[] parts = new Part[sections.length];
+        long frames = 0;
+        for (int s = 0; s < sections.length; s++)
+        {
+            Path p = file(keys[s]);
+            AudioFileFormat aff;
+            try
+            {
+                aff = AudioSystem.getAudioFileFormat(p.toFile());
+            }
+            catch (UnsupportedAudioFileException e)
+            {
+                throw new IOException(p + ": " + e.getMessage());
+            }
+            long start = Math.round(sections[s].getStart() * OfflineRenderer.FORMAT.getFrameRate() / 1e6);
+            parts[s] = new Part(p, start, aff.getFrameLength());
+            frames = Math.max(frames, start + parts[s].length);
+        }
+        Arrays.sort(parts, Comparator.comparingLong(p -> p.start));
+        Mix mix = new Mix(parts, frames);
+        try
+        {
+            AudioSystem.write(new AudioInputStream(mix, OfflineRenderer.FORMAT, frames), AudioFileFormat.Type.WAVE, f);
+        }
+        finally
+        {
+            mix.close();
+        }
+        return frames;
+    }
+
+    /**
+     * A section file in the song
+     */
+    private static class Part
+    {
+        final Path path;
+        final long start;   // first frame in the song
+        final long length;  // frames
+        AudioInputStream in;
+        long done;          // frames read
+
+        Part (Path path, long start, long length)
+        {
+            this.path = path;
+            this.start = start;
+            this.length = length;
+        }
+    }
+
+    /**
+     * The song, mixed block by block from the parts that sound in that block
+     * Only these parts are open
+     */
+    private static class Mix extends InputStream
+    {
+        private final Part[] parts;
+        private final long frames;
+        private final ArrayList<Part> active = new ArrayList<>();
+        private final int[] sum = new int[BLOCK * 2];
+        private final byte[] buf = new byte[BLOCK * 4];
+        private final byte[] one = new byte[1];
+        private int next;   // first part that has not been opened
+        private long pos;   // frames mixed
+
+        Mix (Part[] parts, long frames)
+        {
+            this.parts = parts;
+            this.frames = frames;
+        }
+
+        @Override
+        public int read () throws IOException
+        {
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read (byte[] b, int off, int len) throws IOException
+        {
+            int n = (int) Math.min(Math.min(BLOCK, len / 4), frames - pos);
+            if (n <= 0)
+            {
+                if (len < 4 && pos < frames)
+                {
+                    throw new IOException("Read less than one frame");
+                }
+                return -1;
+            }
+            while (next < parts.length && parts[next].start < pos + n)
+            {
+                Part p = parts[next++];
+                try
+                {
+                    p.in = AudioSystem.getAudioInputStream(p.path.toFile());
+                }
+                catch (UnsupportedAudioFileException e)
+                {
+                    throw new IOException(p.path + ": " + e.getMessage());
+                }
+                active.add(p);
+            }
+            Arrays.fill(sum, 0, 2 * n, 0);
+            for (Iterator<Part> it = active.iterator(); it.hasNext(); )
+            {
+                Part p = it.next();
+                int offset = (int) Math.max(0, p.start - pos);
+                int count = (int) Math.min(n - offset, p.length - p.done);
+                int got = OfflineRenderer.readFully(p.in, buf, 0, count * 4) / 4;
+                for (int i = 0; i < 2 * got; i++)
+                {
+                    sum[2 * offset + i] += (short) (buf[2 * i] & 0xff | buf[2 * i + 1] << 8);
+                }
+                p.done += count;
+                if (p.done >= p.length || got < count)
+                {
+                    p.in.close();
+                    it.remove();
+                }
+            }
+            for (int i = 0; i < 2 * n; i++)
+            {
+                int v = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sum[i]));
+                b[off + 2 * i] = (byte) v;
+                b[off + 2 * i + 1] = (byte) (v >> 8);
+            }
+            pos += n;
+            return 4 * n;
+        }
+
+        @Override
+        public void close () throws IOException
+        {
+            for (Part p : active)
+            {
+                p.in.close();
+            }
+            active.clear();
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package playback;
+
+import pattern.DrumKit;
+import pattern.EventStream;
+
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.ShortMessage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+
+/**
+ * Renders one WAV file (stem) per drum instrument of a song
+ * Every stem gets the notes of one instrument and all other events
+ * (tempo, program changes, controllers), it is rendered by an OfflineRenderer
+ * with its own synthesizer, stems are rendered in parallel on the common pool
+ * All stems have the same length, so they can be put side by side in a mixer
+ */
+public class StemRenderer
+{
+    private final Supplier<EventStream> song;
+    private boolean draft;
+    private long audioMicros;
+    private long renderNanos;
+
+    /**
+     * Constructor
+     *
+     * @param song gives a new stream of the whole song on every call, called from several threads
+     */
+    public StemRenderer (Supplier<EventStream> song)
+    {
+        this.song = song;
+    }
+
+    /**
+     * Draft quality, see OfflineRenderer.setDraft
+     *
+     * @param draft true for fast rendering
+     */
+    public void setDraft (boolean draft)
+    {
+        this.draft = draft;
+    }
+
+    /**
+     * Length of the stems of the last render
+     *
+     * @return microseconds
+     */
+    public long getAudioMicros ()
+    {
+        return audioMicros;
+    }
+
+    /**
+     * Time the last render took
+     *
+     * @return nanoseconds
+     */
+    public long getRenderNanos ()
+    {
+        return renderNanos;
+    }
+
+    /**
+     * Render all stems
+     * The files are named like the file but with the instrument appended,
+     * e.g. song.wav gives song_36_Bass_Drum_1.wav
+     *
+     * @param f name of the song's file
+     * @return the files that have been written, by note number
+     * @throws MidiUnavailableException if there is no software synthesizer
+     * @throws IOException              if writing fails
+     */
+    public List<File> render (File f) throws MidiUnavailableException, IOException
+    {
+        long t0 = System.nanoTime();
+        // one pass to find the instruments and the length of the song
+        boolean[] used = new boolean[128];
+        StreamTime time = new StreamTime();
+        EventStream all = song.get();
+        long end = 0;
+        while (all.next())
+        {
+            if (!time.tempo(all.getTick(), all.getMessage()))
+            {
+                end = (long) time.micros(all.getTick());
+            }
+            int note = noteOf(all.getMessage());
+            if (note >= 0)
+            {
+                used[note] = true;
+            }
+        }
+        int[] notes = IntStream.range(0, 128).filter(n -> used[n]).toArray();
+        File[] files = new File[notes.length];
+        Exception[] errors = new Exception[notes.length];
+        long[] lengths = new long[notes.length];
+        long minLength = end + OfflineRenderer.TAIL;
+        IntStream.range(0, notes.length).parallel().forEach(s ->
+        {
+            files[s] = stemFile(f, notes[s]);
+            OfflineRenderer or = new OfflineRenderer();
+            or.setDraft(draft);
+            or.setMinLength(minLength);
+            try
+            {
+                lengths[s] = or.render(new Stem(song.get(), notes[s]), files[s]);
+            }
+            catch (Exception e)
+            {
+                errors[s] = e;
+            }
+        });
+        for (Exception e : errors)
+        {
+            if (e instanceof IOException)
+            {
+                throw (IOException) e;
+            }
+            if (e instanceof MidiUnavailableException)
+            {
+                throw (MidiUnavailableException) e;
+            }
+            if (e != null)
+            {
+                throw (RuntimeException) e;
+            }
+        }
+        audioMicros = 0;
+        for (long l : lengths)
+        {
+            audioMicros = Math.max(audioMicros, l);
+        }
+        renderNanos = System.nanoTime() - t0;
+        return Arrays.asList(files);
+    }
+
+    /**
+     * File of a stem
+     *
+     * @param f    file name of the song
+     * @param note the instrument
+     * @return the file, in the same directory
+     */
+    private static File stemFile (File f, int note)
+    {
+        String name = f.getName();
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String ext = dot > 0 ? name.substring(dot) : ".wav";
+        String inst = DrumKit.getInstrumentName(note).replaceAll("[^A-Za-z0-9]+", "_");
+        return new File(f.getAbsoluteFile().getParentFile(), base + "_" + inst + ext);
+    }
+
+    /**
+     * Get the note of a note event
+     *
+     * @param msg the message
+     * @return note number or -1 if it's no note event
+     */
+    private static int noteOf (MidiMessage msg)
+    {
+        if (msg instanceof ShortMessage)
+        {
+            ShortMessage sm = (ShortMessage) msg;
+            int cmd = sm.getCommand();
+            if (cmd == ShortMessage.NOTE_ON || cmd == ShortMessage.NOTE_OFF || cmd == ShortMessage.POLY_PRESSURE)
+            {
+                return sm.getData1();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * The events of a stem: all events except the notes of other instruments
+     */
+    private static class Stem implements EventStream
+    {
+        private final EventStream stream;
+        private final int note;
+
+        Stem (EventStream stream, int note)
+        {
+            this.stream = stream;
+            this.note = note;
+        }
+
+        @Override
+        public boolean next ()
+        {
+            while (stream.next())
+            {
+                int n = noteOf(stream.getMessage());
+                if (n < 0 || n == note)
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public long getTick ()
+        {
+            return stream.getTick();
+        }
+
+        @Override
+        public MidiMessage getMessage ()
+        {
+            return stream.getMessage();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package playback;
+
+import arrangement.TempoMap;
+
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiMessage;
+
+/**
+ * Time of the events of an EventStream, follows the tempo events of the stream
+ * Ticks must be given in stream order
+ */
+class StreamTime
+{
+    private long anchorTick;
+    private double anchorMicros;
+    private double microsPerTick = TempoMap.DEFAULT_TEMPO / (double) TempoMap.RESOLUTION;
+
+    /**
+     * Get time of a tick
+     *
+     * @param tick the tick, not before the last tempo event
+     * @return microseconds from the start
+     */
+    double micros (long tick)
+    {
+        return anchorMicros + (tick - anchorTick) * microsPerTick;
+    }
+
+    /**
+     * Take the tempo of a message if it is a tempo event
+     *
+     * @param tick tick of the message
+     * @param msg  the message
+     * @return true if it was a tempo event
+     */
+    boolean tempo (long tick, MidiMessage msg)
+    {
+        if (!(msg instanceof MetaMessage))
+        {
+            return false;
+        }
+        MetaMessage mm = (MetaMessage) msg;
+        if (mm.getType() != 0x51 || mm.getData().length != 3)
+        {
+            return false;
+        }
+        byte[] d = mm.getData();
+        anchorMicros = micros(tick);
+        anchorTick = tick;
+        microsPerTick = ((d[0] & 0xff) << 16 | (d[1] & 0xff) << 8 | d[2] & 0xff) / (double) TempoMap.RESOLUTION;
+        return true;
+    }
+}
@@ -0,0 +1,356 @@
+package similarity;
+
+import pattern.ObjectReader;
+import pattern.ObjectWriter;
+import pattern.PatternModel;
+import pattern.PatternSnapshot;
+import pattern.StepGrid;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Finds similar patterns in a library of pattern files
+ * Every pattern is stored as a fingerprint of LANES x 64 bits:
+ * row r goes to lane r % LANES, step s to bit s % 64
+ * The distance of two patterns is the number of differing bits (Hamming distance)
+ */
+public class PatternIndex
+{
+    public static final int LANES = 16;     // one long per lane
+    private static final int WORDS = LANES;
+    private static final long SEED2 = 0x9e3779b97f4a7c15L;
+
+    private final ArrayList<String> names = new ArrayList<>();
+    private long[] bits = new long[WORDS * 64];     // fingerprints, one after another
+    private int[] counts = new int[64];             // set bits of every fingerprint
+    private long[] hashes = new long[64];           // content hash of every pattern
+    private long[] hashes2 = new long[64];          // second content hash, with another seed
+
+    /**
+     * One search result
+     */
+    public static class Match
+    {
+        private final String name;
+        private final int distance;
+
+        Match (String name, int distance)
+        {
+            this.name = name;
+            this.distance = distance;
+        }
+
+        public String getName ()
+        {
+            return name;
+        }
+
+        /**
+         * Get distance to the query
+         * Rows and steps are folded into the fingerprint, so this only
+         * estimates how many pads differ, 0 doesn't mean the patterns are equal
+         *
+         * @return Hamming distance of the fingerprints
+         */
+        public int getDistance ()
+        {
+            return distance;
+        }
+
+        @Override
+        public String toString ()
+        {
+            return distance + "  " + name;
+        }
+    }
+
+    /**
+     * Compute the fingerprint of a pattern
+     *
+     * @param p the pattern
+     * @return LANES longs
+     */
+    public static long[] fingerprint (PatternSnapshot p)
+    {
+        long[] f = new long[WORDS];
+        StepGrid g = p.getGrid();
+        int steps = p.getSteps();
+        for (int row = 0; row < g.getRows(); row++)
+        {
+            for (int w = 0; w << 6 < steps; w++)
+            {
+                f[row % LANES] |= g.getWord(row, w) & mask(w, steps);
+            }
+        }
+        return f;
+    }
+
+    /**
+     * Compute a hash over all pads of a pattern: hits, notes and velocities
+     *
+     * @param p the pattern
+     * @return the hash
+     */
+    public static long contentHash (PatternSnapshot p)
+    {
+        return contentHash(p, 0);
+    }
+
+    /**
+     * Compute a hash over all pads, hashes with different seeds are independent
+     *
+     * @param p    the pattern
+     * @param seed start value
+     * @return the hash
+     */
+    private static long contentHash (PatternSnapshot p, long seed)
+    {
+        StepGrid g = p.getGrid();
+        int steps = p.getSteps();
+        long h = mix(seed ^ steps * 31L + g.getRows());
+        for (int row = 0; row < g.getRows(); row++)
+        {
+            for (int w = 0; w << 6 < steps; w++)
+            {
+                long word = g.getWord(row, w) & mask(w, steps);
+                h = mix(h ^ word);
+                for (long b = word; b != 0; b &= b - 1)
+                {
+                    int c = (w << 6) + Long.numberOfTrailingZeros(b);
+                    h = mix(h ^ g.getNote(row, c) << 7 ^ g.getVelocity(row, c));
+                }
+            }
+        }
+        return h;
+    }
+
+    private static long mask (int word, int steps)
+    {
+        int n = steps - (word << 6);
+        return n >= 64 ? -1L : (1L << n) - 1;
+    }
+
+    private static long mix (long h)
+    {
+        h = (h ^ h >>> 33) * 0xff51afd7ed558ccdL;
+        h = (h ^ h >>> 33) * 0xc4ceb9fe1a85ec53L;
+        return h ^ h >>> 33;
+    }
+
+    /**
+     * Add a pattern
+     *
+     * @param name name of the pattern, usually the file name
+     * @param p    the pattern
+     */
+    public void add (String name, PatternSnapshot p)
+    {
+        add(name, fingerprint(p), contentHash(p), contentHash(p, SEED2));
+    }
+
+    private void add (String name, long[] f, long hash, long hash2)
+    {
+        int n = names.size();
+        if (n == counts.length)
+        {
+            bits = Arrays.copyOf(bits, n * 2 * WORDS);
+            counts = Arrays.copyOf(counts, n * 2);
+            hashes = Arrays.copyOf(hashes, n * 2);
+            hashes2 = Arrays.copyOf(hashes2, n * 2);
+        }
+        int c = 0;
+        for (int w = 0; w < WORDS; w++)
+        {
+            bits[n * WORDS + w] = f[w];
+            c += Long.bitCount(f[w]);
+        }
+        counts[n] = c;
+        hashes[n] = hash;
+        hashes2[n] = hash2;
+        names.add(name);
+    }
+
+    public int size ()
+    {
+        return names.size();
+    }
+
+    /**
+     * Find the patterns that are most like a pattern
+     *
+     * @param p the pattern
+     * @param k number of results
+     * @return up to k matches, nearest first
+     */
+    public List<Match> nearest (PatternSnapshot p, int k)
+    {
+        if (k <= 0)
+        {
+            return new ArrayList<>();
+        }
+        long[] f = fingerprint(p);
+        int count = 0;
+        for (long l : f)
+        {
+            count += Long.bitCount(l);
+        }
+        int[] best = new int[k];        // indices, sorted by distance
+        int[] dist = new int[k];
+        int found = 0;
+        int limit = Integer.MAX_VALUE;  // distance of the worst result if k were found
+        for (int s = 0; s < names.size(); s++)
+        {
+            if (Math.abs(counts[s] - count) >= limit)     // can't be nearer
+            {
+                continue;
+            }
+            int d = 0;
+            int base = s * WORDS;
+            for (int w = 0; w < WORDS && d < limit; w++)
+            {
+                d += Long.bitCount(bits[base + w] ^ f[w]);
+            }
+            if (d >= limit)
+            {
+                continue;
+            }
+            int i = Math.min(found, k - 1);
+            while (i > 0 && dist[i - 1] > d)
+            {
+                best[i] = best[i - 1];
+                dist[i] = dist[i - 1];
+                i--;
+            }
+            best[i] = s;
+            dist[i] = d;
+            found = Math.min(found + 1, k);
+            if (found == k)
+            {
+                limit = dist[k - 1];
+            }
+        }
+        ArrayList<Match> result = new ArrayList<>();
+        for (int s = 0; s < found; s++)
+        {
+            result.add(new Match(names.get(best[s]), dist[s]));
+        }
+        return result;
+    }
+
+    /**
+     * Find patterns with exactly the same pads
+     * Both content hashes must be equal, different patterns match with
+     * a chance of about 2^-128 per pair, so nothing is loaded again
+     *
+     * @return groups of names, every group has at least two entries
+     */
+    public List<List<String>> duplicates ()
+    {
+        HashMap<List<Long>, List<String>> map = new HashMap<>();
+        for (int s = 0; s < names.size(); s++)
+        {
+            map.computeIfAbsent(Arrays.asList(hashes[s], hashes2[s]), h -> new ArrayList<>()).add(names.get(s));
+        }
+        return map.values().stream()
+                .filter(l -> l.size() > 1)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Build an index of all pattern files (*.drmp) in a directory and its subdirectories
+     * Files are loaded in parallel, files that can't be read are skipped
+     *
+     * @param dir the directory
+     * @return the index
+     * @throws IOException if the directory can't be read
+     */
+    public static PatternIndex scan (String dir) throws IOException
+    {
+        List<Path> files;
+        try (Stream<Path> s = Files.walk(Paths.get(dir)))
+        {
+            files = s.filter(f -> f.toString().endsWith(".drmp"))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        List<Object[]> loaded = files.parallelStream()
+                .map(PatternIndex::load)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+        PatternIndex idx = new PatternIndex();
+        for (Object[] o : loaded)
+        {
+            idx.add((String) o[0], (PatternSnapshot) o[1]);
+        }
+        return idx;
+    }
+
+    private static Object[] load (Path file)
+    {
+        try
+        {
+            PatternModel m = new PatternModel();
+            m.read(file.toString());
+            return new Object[]{file.toString(), m.snapshot()};
+        }
+        catch (Exception e)
+        {
+            System.out.println(file + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Save the index, so the files don't have to be loaded again
+     *
+     * @param filename file name
+     */
+    public void write (String filename)
+    {
+        int n = names.size();
+        ObjectWriter w = new ObjectWriter(filename);
+        w.putObject(names.toArray(new String[n]));
+        w.putObject(Arrays.copyOf(bits, n * WORDS));
+        w.putObject(Arrays.copyOf(hashes, n));
+        w.putObject(Arrays.copyOf(hashes2, n));
+        w.close();
+    }
+
+    /**
+     * Load an index that was saved by write()
+     *
+     * @param filename file name
+     * @return the index
+     */
+    public static PatternIndex read (String filename)
+    {
+        ObjectReader r = new ObjectReader(filename);
+        try
+        {
+            String[] n = (String[]) r.getObject();
+            long[] b = (long[]) r.getObject();
+            long[] h = (long[]) r.getObject();
+            long[] h2 = (long[]) r.getObject();
+            if (h2 == null)
+            {
+                throw new IllegalStateException("Index without second hash, scan again: " + filename);
+            }
+            PatternIndex idx = new PatternIndex();
+            for (int s = 0; s < n.length; s++)
+            {
+                idx.add(n[s], Arrays.copyOfRange(b, s * WORDS, s * WORDS + WORDS), h[s], h2[s]);
+            }
+            return idx;
+        }
+        finally
+        {
+            r.close();
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package smf;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiMessage;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Writes a type 1 Standard MIDI File from events that come in tick order,
+ * each one given with the track it belongs to
+ * Every track is encoded at once into its own byte array, so one pass over
+ * the song is enough and only the encoded bytes are held in memory
+ * Track 0 is the conductor track, other tracks are written in the order
+ * of their numbers, tracks without events are left out
+ */
+public class MultiTrackWriter implements Closeable
+{
+    private final File file;
+    private final int resolution;
+    private Track[] tracks = new Track[16];
+
+    /**
+     * Constructor
+     *
+     * @param file       the file, will be overwritten on close
+     * @param resolution ticks per quarter note
+     */
+    public MultiTrackWriter (File file, int resolution)
+    {
+        this.file = file;
+        this.resolution = resolution;
+        track(0);
+    }
+
+    /**
+     * Encoded events of one track
+     */
+    private static class Track implements TrackEncoder.ByteSink
+    {
+        byte[] data = new byte[256];
+        int size;
+        final TrackEncoder encoder = new TrackEncoder(this);
+
+        @Override
+        public void put (int b)
+        {
+            if (size == data.length)
+            {
+                data = Arrays.copyOf(data, size * 2);
+            }
+            data[size++] = (byte) b;
+        }
+    }
+
+    private Track track (int idx)
+    {
+        if (idx >= tracks.length)
+        {
+            tracks = Arrays.copyOf(tracks, Math.max(idx + 1, tracks.length * 2));
+        }
+        if (tracks[idx] == null)
+        {
+            tracks[idx] = new Track();
+        }
+        return tracks[idx];
+    }
+
+    /**
+     * Give a track a name, must be done before its first event
+     *
+     * @param idx  track number
+     * @param name the name
+     * @throws IOException never
+     */
+    public void setTrackName (int idx, String name) throws IOException
+    {
+        byte[] b = name.getBytes(StandardCharsets.ISO_8859_1);
+        try
+        {
+            write(idx, 0, new MetaMessage(0x03, b, b.length));
+        }
+        catch (InvalidMidiDataException e)
+        {
+            System.out.println(e);
+        }
+    }
+
+    /**
+     * Add one event to a track
+     *
+     * @param idx  track number, 0 is the conductor track
+     * @param tick absolute tick, not less than the one of the event before in that track
+     * @param msg  the message
+     * @throws IOException never, events are kept in memory until close
+     */
+    public void write (int idx, long tick, MidiMessage msg) throws IOException
+    {
+        track(idx).encoder.write(tick, msg);
+    }
+
+    /**
+     * Write the file
+     *
+     * @throws IOException if writing fails
+     */
+    @Override
+    public void close () throws IOException
+    {
+        if (tracks == null)
+        {
+            return;
+        }
+        int count = 0;
+        for (Track t : tracks)
+        {
+            if (t != null)
+            {
+                t.encoder.end();
+                count++;
+            }
+        }
+        ByteBuffer[] parts = new ByteBuffer[1 + 2 * count];
+        ByteBuffer header = ByteBuffer.allocate(14);
+        header.putInt(0x4d546864);  // MThd
+        header.putInt(6);
+        header.putShort((short) 1);
+        header.putShort((short) count);
+        header.putShort((short) (resolution & 0x7fff));
+        header.flip();
+        parts[0] = header;
+        int p = 1;
+        for (Track t : tracks)
+        {
+            if (t != null)
+            {
+                ByteBuffer head = ByteBuffer.allocate(8);
+                head.putInt(0x4d54726b);    // MTrk
+                head.putInt(t.size);
+                head.flip();
+                parts[p++] = head;
+                parts[p++] = ByteBuffer.wrap(t.data, 0, t.size);
+            }
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            long total = 0;
+            for (ByteBuffer b : parts)
+            {
+                total += b.remaining();
+            }
+            while (total > 0)
+            {
+                total -= channel.write(parts);
+            }
+        }
+        tracks = null;
+    }
+}
@@ -0,0 +1,231 @@
+package smf;
+
+import pattern.EventStream;
+
+import javax.sound.midi.*;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes Standard MIDI Files (type 0 or 1) while the events come in
+ * Events must be given in tick order, one track after another
+ * Only a small buffer is held in memory, track lengths and the track count
+ * are patched into the file when a track is finished
+ * Running status is used for channel messages, so files get smaller
+ */
+public class SmfWriter implements Closeable
+{
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final int type;
+    private int tracks;
+    private TrackEncoder track;     // null if no track is open
+    private long lengthPos;         // file position of length field of current track
+
+    /**
+     * Constructor, uses PPQ timing
+     *
+     * @param file       the file, will be overwritten
+     * @param type       0 or 1
+     * @param resolution ticks per quarter note
+     * @throws IOException if the file can't be created
+     */
+    public SmfWriter (File file, int type, int resolution) throws IOException
+    {
+        this(file, type, Sequence.PPQ, resolution);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param file         the file, will be overwritten
+     * @param type         0 or 1
+     * @param divisionType Sequence.PPQ or one of the Sequence.SMPTE types
+     * @param resolution   ticks per quarter note or per frame
+     * @throws IOException if the file can't be created
+     */
+    public SmfWriter (File file, int type, float divisionType, int resolution) throws IOException
+    {
+        if (type != 0 && type != 1)
+        {
+            throw new IllegalArgumentException("Unsupported file type: " + type);
+        }
+        this.type = type;
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        buffer.putInt(0x4d546864);  // MThd
+        buffer.putInt(6);
+        buffer.putShort((short) type);
+        buffer.putShort((short) 0); // track count, patched by close
+        buffer.putShort((short) division(divisionType, resolution));
+    }
+
+    private static int division (float divisionType, int resolution)
+    {
+        if (divisionType == Sequence.PPQ)
+        {
+            return resolution & 0x7fff;
+        }
+        int fps = (int) divisionType;   // 29.97 is written as 29
+        return (-fps & 0xff) << 8 | resolution & 0xff;
+    }
+
+    /**
+     * Begin a new track, the current one is ended
+     *
+     * @throws IOException if writing fails
+     */
+    public void startTrack () throws IOException
+    {
+        endTrack();
+        if (type == 0 && tracks > 0)
+        {
+            throw new IllegalStateException("Type 0 file can't have more than one track");
+        }
+        ensure(8);
+        buffer.putInt(0x4d54726b);  // MTrk
+        lengthPos = channel.position() + buffer.position();
+        buffer.putInt(0);           // patched by endTrack
+        tracks++;
+        track = new TrackEncoder(b ->
+        {
+            ensure(1);
+            buffer.put((byte) b);
+        });
+    }
+
+    /**
+     * Write one event into the current track
+     * An end of track meta event is not written, it only sets the end tick
+     *
+     * @param tick absolute tick, not less than the one of the event before
+     * @param msg  the message
+     * @throws IOException if writing fails
+     */
+    public void write (long tick, MidiMessage msg) throws IOException
+    {
+        if (track == null)
+        {
+            throw new IllegalStateException("No track started");
+        }
+        track.write(tick, msg);
+    }
+
+    /**
+     * Write the end of track event and patch the track length
+     *
+     * @throws IOException if writing fails
+     */
+    public void endTrack () throws IOException
+    {
+        if (track == null)
+        {
+            return;
+        }
+        track.end();
+        flush();
+        ByteBuffer b = ByteBuffer.allocate(4);
+        b.putInt((int) track.getLength()).flip();
+        channel.write(b, lengthPos);
+        track = null;
+    }
+
+    /**
+     * End the current track, patch the track count and close the file
+     *
+     * @throws IOException if writing fails
+     */
+    @Override
+    public void close () throws IOException
+    {
+        try
+        {
+            endTrack();
+            flush();
+            ByteBuffer b = ByteBuffer.allocate(2);
+            b.putShort((short) tracks).flip();
+            channel.write(b, 10);
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    /**
+     * Replacement for MidiSystem.write that streams every track of a sequence
+     *
+     * @param seq  the sequence
+     * @param type 0 or 1, type 0 needs a sequence with one track
+     * @param f    the file
+     * @throws IOException if writing fails
+     */
+    public static void write (Sequence seq, int type, File f) throws IOException
+    {
+        Track[] tracks = seq.getTracks();
+        if (type == 0 && tracks.length != 1)
+        {
+            throw new IllegalArgumentException("Type 0 file needs exactly one track");
+        }
+        try (SmfWriter w = new SmfWriter(f, type, seq.getDivisionType(), seq.getResolution()))
+        {
+            for (Track t : tracks)
+            {
+                w.startTrack();
+                for (int s = 0; s < t.size(); s++)
+                {
+                    MidiEvent e = t.get(s);
+                    w.write(e.getTick(), e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Write all events of a stream into one track of a type 1 file
+     * Type 1 is what MidiSystem.write gave for a song before, so files keep their format
+     *
+     * @param stream     the events
+     * @param resolution ticks per quarter note
+     * @param f          the file
+     * @throws IOException if writing fails
+     */
+    public static void write (EventStream stream, int resolution, File f) throws IOException
+    {
+        try (SmfWriter w = new SmfWriter(f, 1, resolution))
+        {
+            w.startTrack();
+            while (stream.next())
+            {
+                w.write(stream.getTick(), stream.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Make room for some bytes in the buffer
+     */
+    private void ensure (int bytes) throws IOException
+    {
+        if (buffer.remaining() < bytes)
+        {
+            flush();
+        }
+    }
+
+    private void flush () throws IOException
+    {
+        buffer.flip();
+        while (buffer.hasRemaining())
+        {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
@@ -0,0 +1,155 @@
+package smf;
+
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.ShortMessage;
+import java.io.IOException;
+
+/**
+ * Encodes the events of one track of a Standard MIDI File
+ * Delta times are variable length numbers, channel messages use running status
+ */
+class TrackEncoder
+{
+    /**
+     * Where the bytes go
+     */
+    interface ByteSink
+    {
+        void put (int b) throws IOException;
+    }
+
+    private final ByteSink out;
+    private long lastTick;
+    private long endTick;           // tick of an end of track event that was given
+    private int runningStatus;      // 0: none
+    private long length;            // bytes written
+
+    TrackEncoder (ByteSink out)
+    {
+        this.out = out;
+    }
+
+    /**
+     * Encode one event
+     * An end of track meta event is not written, it only sets the end tick
+     *
+     * @param tick absolute tick, not less than the one of the event before
+     * @param msg  the message
+     * @throws IOException if writing fails
+     */
+    void write (long tick, MidiMessage msg) throws IOException
+    {
+        if (tick < lastTick)
+        {
+            throw new IllegalArgumentException("Events not sorted at tick " + tick);
+        }
+        if (msg instanceof ShortMessage)
+        {
+            ShortMessage sm = (ShortMessage) msg;
+            int status = sm.getStatus();
+            int n = sm.getLength();
+            writeDelta(tick);
+            if (status != runningStatus)
+            {
+                put(status);
+                runningStatus = status < 0xf0 ? status : 0;
+            }
+            if (n > 1)
+            {
+                put(sm.getData1());
+            }
+            if (n > 2)
+            {
+                put(sm.getData2());
+            }
+        }
+        else if (msg instanceof MetaMessage)
+        {
+            MetaMessage mm = (MetaMessage) msg;
+            if (mm.getType() == 0x2f)
+            {
+                endTick = Math.max(endTick, tick);
+                return;
+            }
+            byte[] data = mm.getData();
+            writeDelta(tick);
+            put(0xff);
+            put(mm.getType());
+            writeVarLen(data.length);
+            put(data, 0, data.length);
+            runningStatus = 0;
+        }
+        else
+        {
+            byte[] data = msg.getMessage();   // status (F0 or F7) and data
+            writeDelta(tick);
+            put(data[0]);
+            writeVarLen(data.length - 1);
+            put(data, 1, data.length - 1);
+            runningStatus = 0;
+        }
+    }
+
+    /**
+     * Write the end of track event
+     *
+     * @throws IOException if writing fails
+     */
+    void end () throws IOException
+    {
+        writeDelta(Math.max(lastTick, endTick));
+        put(0xff);
+        put(0x2f);
+        put(0);
+    }
+
+    /**
+     * Get number of bytes written so far
+     *
+     * @return track length
+     */
+    long getLength ()
+    {
+        return length;
+    }
+
+    private void writeDelta (long tick) throws IOException
+    {
+        writeVarLen(tick - lastTick);
+        lastTick = tick;
+    }
+
+    private void writeVarLen (long value) throws IOException
+    {
+        if (value > 0x0fffffff)
+        {
+            throw new IllegalArgumentException("Value too large: " + value);
+        }
+        int v = (int) value;
+        int shift = 21;
+        while (shift > 0 && (v >>> shift) == 0)
+        {
+            shift -= 7;
+        }
+        for (; shift > 0; shift -= 7)
+        {
+            put(0x80 | (v >>> shift) & 0x7f);
+        }
+        put(v & 0x7f);
+    }
+
+    private void put (byte[] data, int offset, int n) throws IOException
+    {
+        for (int s = 0; s < n; s++)
+        {
+            put(data[offset + s]);
+        }
+    }
+
+    private void put (int b) throws IOException
+    {
+        out.put(b);
+        length++;
+    }
+}
@@ -1,5 +1,7 @@
 package splitterdialog;
 
+import smf.SmfWriter;
+
 import javax.sound.midi.*;
 import java.io.File;
 import java.util.HashMap;
@@ -72,7 +74,7 @@ class Splitter
             tracknum++;
             File f = new File(directory + "\\miditrack" + tracknum
                     + "-" + System.currentTimeMillis() + "-.mid");
-            MidiSystem.write(sequence, 1, f);
+            SmfWriter.write(sequence, 1, f);
         }
     }
 